@@ -1,13 +1,25 @@
 package de.mpii;
 
+import de.mpii.mining.Checkpointer;
+import de.mpii.mining.ConfigSweep;
 import de.mpii.mining.Miner;
 import de.mpii.mining.MinerConfig;
+import de.mpii.mining.MinerState;
+import de.mpii.mining.MiningSession;
+import de.mpii.mining.distributed.MiningCoordinator;
+import de.mpii.mining.distributed.MiningWorker;
+import de.mpii.mining.output.AsyncRuleSink;
+import de.mpii.mining.output.LeaderboardSink;
+import de.mpii.mining.output.OutputSorter;
+import de.mpii.mining.output.ResultEncoder;
+import de.mpii.mining.output.RuleSink;
 import org.apache.commons.cli.*;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -34,6 +46,17 @@ public class Main {
         option.setRequired(true);
         options.addOption(option);
 
+        // floatEmbedding
+        option = new Option("ef", "embedding_float", false, "Store embeddings in float precision");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // embeddingIndexError
+        option = new Option("ei", "embedding_index", true, "Count ranks with an index of the entities, with the " +
+                "given max error of inverted ranks (0 for exact ranks) (transe/hole only)");
+        option.setRequired(false);
+        options.addOption(option);
+
         // minConf
         option = new Option("mc", "min_conf", true, "Min confidence of rule (not counting mrr) (default: 0.1)");
         option.setRequired(false);
@@ -132,25 +155,148 @@ public class Main {
         option.setRequired(false);
         options.addOption(option);
 
+        // targetHeads
+        option = new Option("hd", "heads", true, "Comma-separated head predicates (names or ids) to mine (default: " +
+                "all)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // numHeadPartitions
+        option = new Option("np", "num_head_partitions", true, "Mine heads in this number of independent searches, " +
+                "balanced by number of facts (default: 0, a single search)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // frontierMemoryBudget
+        option = new Option("fmb", "frontier_memory_budget", true, "Memory budget in MB of queued rules, rules " +
+                "beyond it are spilled to disk (default: 0, unlimited)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // spillDirectory
+        option = new Option("sd", "spill_dir", true, "Directory for spilled rules (default: system temporary " +
+                "directory)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // bestFirst
+        option = new Option("bf", "best_first", false, "Match rules whose extensions can reach a higher score " +
+                "first");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // deadline
+        option = new Option("dl", "deadline", true, "Stop mining after this number of seconds (default: 0, no " +
+                "deadline)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // topK
+        option = new Option("topk", "top_k", true, "With best-first, stop mining once the top-k rules of every head" +
+                " are final (default: 0, mine all)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // checkpointDirectory
+        option = new Option("ckd", "checkpoint_dir", true, "Directory to save checkpoints of the search to (default: " +
+                "no checkpoint)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // checkpointInterval
+        option = new Option("cki", "checkpoint_interval", true, "Seconds between checkpoints (default: 600)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // resume
+        option = new Option("resume", "resume", false, "Resume from the latest checkpoint in the checkpoint " +
+                "directory, with the same options and output");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // evaluationCacheDirectory
+        option = new Option("ecd", "eval_cache_dir", true, "Directory to cache rule evaluations in, reused by later " +
+                "runs on the same graph (default: no cache)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // rankCacheMemory
+        option = new Option("rcm", "rank_cache_memory", true, "Memory budget in MB for caching the ranks of facts by " +
+                "the embedding, saved with the evaluation cache if used (default: 64)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // scoreProfileMemory
+        option = new Option("spm", "score_profile_memory", true, "Memory budget in MB for the sorted scores of the " +
+                "candidates of (subject, predicate) and (predicate, object) pairs ranked again (default: 0, disabled)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // outputFormat
+        option = new Option("of", "output_format", true, "Format of the output: 'tsv', 'jsonl' or 'binary' (default: " +
+                "tsv, also sorted into output.sorted)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // sortedTopK
+        option = new Option("stk", "sorted_top_k", true, "Keep only this number of best rules of each head in the " +
+                "sorted output (default: 0, all)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // sortMemoryBudget
+        option = new Option("smb", "sort_memory_budget", true, "Memory budget in MB for sorting the output, sorted " +
+                "runs beyond it are spilled to the spill directory (default: 256)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // leaderboardSize
+        option = new Option("lb", "leaderboard", true, "Keep the best rules of each head while mining, up to this " +
+                "number; creating output.snapshot writes them to output.leaderboard (default: 0, no leaderboard)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // capOutput
+        option = new Option("lbcap", "leaderboard_cap", false, "Only write the final leaderboard to the output");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // echoResults
+        option = new Option("echo", "echo", false, "Print results to the console as well");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // sweep
+        option = new Option("sweep", "sweep", true, "File of configurations to mine in a single search, one line of " +
+                "threshold and language bias options each, with its own -o (default: output followed by the line " +
+                "number)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // daemon
+        option = new Option("daemon", "daemon", true, "Keep the workspace loaded and run jobs, one line of options " +
+                "each, read from connections to the given port or from standard input if '-'; DONE or ERROR is " +
+                "replied to each job (with '-', replies are the only standard output)");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // coordinator
+        option = new Option("coord", "coordinator", true, "Run as coordinator listening on the given port, head " +
+                "partitions are mined by worker processes. Needs -np, the number of tasks: a small multiple of the " +
+                "number of workers, as rule bodies shared by the heads of different tasks are matched in each task");
+        option.setRequired(false);
+        options.addOption(option);
+
+        // worker
+        option = new Option("worker", "worker", true, "Run as worker of the coordinator at the given host:port");
+        option.setRequired(false);
+        options.addOption(option);
+
         return options;
     }
 
-    public static void main(String[] args) throws Exception {
-//        args = "-w ../data/imdb -em transe -o tmp -na 3 -ew 0 -ms 2 -nna 1 -nina 0".split("\\s++");
-
-        long currentTime = System.currentTimeMillis();
+    private static MinerConfig parseConfig(CommandLine cmd) {
         MinerConfig config = new MinerConfig();
-
-        // Get config.
-        Options options = getOptions();
-        CommandLine cmd = null;
-        try {
-            cmd = new DefaultParser().parse(options, args);
-        } catch (ParseException e) {
-            System.out.println(e.getMessage());
-            new HelpFormatter().printHelp("utility-name", options);
-            return;
-        }
         String ov = cmd.getOptionValue("nv");
         if (ov != null) {
             config.maxNumVariables = Integer.parseInt(ov);
@@ -163,6 +309,13 @@ public class Main {
         if (ov != null) {
             config.embeddingModel = ov;
         }
+        if (cmd.hasOption("ef")) {
+            config.floatEmbedding = true;
+        }
+        ov = cmd.getOptionValue("ei");
+        if (ov != null) {
+            config.embeddingIndexError = Double.parseDouble(ov);
+        }
         ov = cmd.getOptionValue("na");
         if (ov != null) {
             config.maxNumAtoms = Integer.parseInt(ov);
@@ -211,6 +364,75 @@ public class Main {
         if (ov != null) {
             config.numWorkers = Integer.parseInt(ov);
         }
+        ov = cmd.getOptionValue("hd");
+        if (ov != null) {
+            config.targetHeads = ov;
+        }
+        ov = cmd.getOptionValue("np");
+        if (ov != null) {
+            config.numHeadPartitions = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("fmb");
+        if (ov != null) {
+            config.frontierMemoryBudget = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("sd");
+        if (ov != null) {
+            config.spillDirectory = ov;
+        }
+        if (cmd.hasOption("bf")) {
+            config.bestFirst = true;
+        }
+        ov = cmd.getOptionValue("dl");
+        if (ov != null) {
+            config.deadline = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("topk");
+        if (ov != null) {
+            config.topK = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("ckd");
+        if (ov != null) {
+            config.checkpointDirectory = ov;
+        }
+        ov = cmd.getOptionValue("cki");
+        if (ov != null) {
+            config.checkpointInterval = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("ecd");
+        if (ov != null) {
+            config.evaluationCacheDirectory = ov;
+        }
+        ov = cmd.getOptionValue("rcm");
+        if (ov != null) {
+            config.rankCacheMemory = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("spm");
+        if (ov != null) {
+            config.scoreProfileMemory = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("of");
+        if (ov != null) {
+            config.outputFormat = ov;
+        }
+        ov = cmd.getOptionValue("stk");
+        if (ov != null) {
+            config.sortedTopK = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("smb");
+        if (ov != null) {
+            config.sortMemoryBudget = Integer.parseInt(ov);
+        }
+        ov = cmd.getOptionValue("lb");
+        if (ov != null) {
+            config.leaderboardSize = Integer.parseInt(ov);
+        }
+        if (cmd.hasOption("lbcap")) {
+            config.capOutput = true;
+        }
+        if (cmd.hasOption("echo")) {
+            config.echoResults = true;
+        }
         if (cmd.hasOption("pca")) {
             config.usePCAConf = true;
         }
@@ -225,48 +447,246 @@ public class Main {
         if (ov != null) {
             config.minSupport = Integer.parseInt(ov);
         }
-        String output = cmd.getOptionValue("w") + "/rules.txt";
-        if (cmd.hasOption("o")) {
-            output = cmd.getOptionValue("o");
-        }
-        // Process.
-        config.printConfig();
         if (config.xyz && config.maxNumBinaryPositiveAtoms != 3) {
             config.maxNumBinaryPositiveAtoms = 3;
             LOGGER.info("XYZ enabled: maxNumBinaryPositiveAtoms is set to 3");
         }
-        Miner miner = new Miner(cmd.getOptionValue("w"), config, new PrintWriter(new File(output)));
-        miner.mine();
+        return config;
+    }
+
+    // Write the rules of a tsv output sorted by decreasing scr to output.sorted.
+    private static void sortOutput(String output, MinerConfig config) throws IOException {
+        if (!config.outputFormat.equalsIgnoreCase("tsv")) {
+            return;
+        }
+        new OutputSorter(config.sortMemoryBudget * 1024L * 1024L, config.sortedTopK, config.spillDirectory == null ?
+                null : new File(config.spillDirectory)).sort(new File(output), new File(output + ".sorted"));
+    }
 
-        ArrayList<String[]> rules = new ArrayList<>();
-        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(output))));
+    // Parse the configurations of a sweep, one line of options each, which take precedence over the options of the
+    // command line. The output of a variant is given by its own -o option, or is the output followed by the line
+    // number.
+    private static List<MinerConfig> parseSweep(String file, String[] args, String output, Options options,
+                                                List<String> outputs) throws IOException, ParseException {
+        List<MinerConfig> variants = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(file))));
         String line;
+        int lineNumber = 0;
         while ((line = in.readLine()) != null) {
-            if (line.isEmpty()) {
-                break;
+            ++lineNumber;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] lineArgs = line.split("\\s+");
+            // The first value of an option given twice is used.
+            String[] variantArgs = new String[lineArgs.length + args.length];
+            System.arraycopy(lineArgs, 0, variantArgs, 0, lineArgs.length);
+            System.arraycopy(args, 0, variantArgs, lineArgs.length, args.length);
+            variants.add(parseConfig(new DefaultParser().parse(options, variantArgs)));
+            String variantOutput = output + "." + lineNumber;
+            for (int i = 0; i + 1 < lineArgs.length; ++i) {
+                if (lineArgs[i].equals("-o") || lineArgs[i].equals("--output")) {
+                    variantOutput = lineArgs[i + 1];
+                }
             }
-            rules.add(line.split("\t"));
+            outputs.add(variantOutput);
         }
         in.close();
-        Collections.sort(rules, new Comparator<String[]>() {
-            @Override
-            public int compare(String[] o1, String[] o2) {
-                return o2[8].compareTo(o1[8]);
+        return variants;
+    }
+
+    private static RuleSink openSink(String output, MinerConfig config, boolean append) throws IOException {
+        RuleSink sink = new AsyncRuleSink(new FileOutputStream(new File(output), append), ResultEncoder.forFormat
+                (config.outputFormat), config.echoResults);
+        if (config.leaderboardSize > 0) {
+            sink = new LeaderboardSink(sink, config.leaderboardSize, config.capOutput, new File(output +
+                    ".leaderboard"), new File(output + ".snapshot"));
+        }
+        return sink;
+    }
+
+    // Miners of a job use the session if not null, otherwise they load the workspace.
+    private static Miner newMiner(MiningSession session, CommandLine cmd, MinerConfig config, RuleSink output) {
+        return session == null ? new Miner(cmd.getOptionValue("w"), config, output) : new Miner(session, config,
+                output);
+    }
+
+    // Run the job given by the command line. Return false if it cannot be run.
+    private static boolean runJob(CommandLine cmd, String[] args, Options options, MiningSession session) throws
+            Exception {
+        long currentTime = System.currentTimeMillis();
+
+        MinerConfig config = parseConfig(cmd);
+        String output = cmd.getOptionValue("w") + "/rules.txt";
+        if (cmd.hasOption("o")) {
+            output = cmd.getOptionValue("o");
+        }
+        // Process.
+        List<String> sweepOutputs = null;
+        List<MinerConfig> variants = null;
+        if (cmd.hasOption("sweep")) {
+            sweepOutputs = new ArrayList<>();
+            variants = parseSweep(cmd.getOptionValue("sweep"), args, output, options, sweepOutputs);
+            if (variants.isEmpty()) {
+                LOGGER.severe("No configuration in sweep file: " + cmd.getOptionValue("sweep"));
+                return false;
+            }
+            if (!ConfigSweep.loosen(config, variants)) {
+                LOGGER.severe("Sweep variants must use the embedding model, confidence, xyz and heads of the base " +
+                        "configuration.");
+                return false;
+            }
+        }
+        config.printConfig();
+        if ((config.checkpointDirectory != null || cmd.hasOption("resume")) && !ResultEncoder.forFormat(config
+                .outputFormat).isLineBased()) {
+            LOGGER.severe("Checkpoints need a line based output format.");
+            return false;
+        }
+        if ((config.checkpointDirectory != null || cmd.hasOption("resume")) && config.capOutput) {
+            LOGGER.severe("Checkpoints cannot be used with a capped output.");
+            return false;
+        }
+        if (variants != null) {
+            if (cmd.hasOption("worker") || cmd.hasOption("coord") || cmd.hasOption("resume") || config
+                    .checkpointDirectory != null || config.topK > 0) {
+                LOGGER.severe("Sweep cannot be used with coordinator, worker, checkpoints or top-k.");
+                return false;
+            }
+            Miner miner = newMiner(session, cmd, config, null);
+            List<RuleSink> sinks = new ArrayList<>();
+            for (int i = 0; i < sweepOutputs.size(); ++i) {
+                sinks.add(openSink(sweepOutputs.get(i), variants.get(i), false));
             }
-        });
-        PrintWriter out = new PrintWriter(new File(output + ".sorted"));
-        for (String[] rule : rules) {
-            for (int i = 0; i < rule.length; ++i) {
-                out.print(rule[i]);
-                if (i < rule.length - 1) {
-                    out.print("\t");
+            miner.sweep = new ConfigSweep(variants, sinks, miner.knowledgeGraph);
+            miner.mine();
+        } else if (cmd.hasOption("worker")) {
+            String[] address = cmd.getOptionValue("worker").split(":");
+            new MiningWorker(cmd.getOptionValue("w"), config).run(address[0], Integer.parseInt(address[1]));
+            return true;
+        } else if (cmd.hasOption("coord")) {
+            if (config.numHeadPartitions <= 0) {
+                LOGGER.severe("Coordinator needs the number of head partitions (-np) to hand out as tasks.");
+                return false;
+            }
+            new MiningCoordinator(cmd.getOptionValue("w"), config, openSink(output, config, false))
+                    .run(Integer.parseInt(cmd.getOptionValue("coord")));
+        } else if (cmd.hasOption("resume")) {
+            File checkpoint = config.checkpointDirectory == null ? null : Checkpointer.getLatestDirectory(new File
+                    (config.checkpointDirectory));
+            if (checkpoint == null) {
+                LOGGER.severe("No checkpoint to resume from.");
+                return false;
+            }
+            LOGGER.info("Resuming from " + checkpoint.getPath());
+            MinerState state = Checkpointer.load(checkpoint);
+            Checkpointer.truncateLines(new File(output), state.outputLines);
+            Miner miner = newMiner(session, cmd, config, openSink(output, config, true));
+            miner.mine(state, checkpoint);
+        } else {
+            Miner miner = newMiner(session, cmd, config, openSink(output, config, false));
+            miner.mine();
+        }
+
+        if (variants == null) {
+            sortOutput(output, config);
+        } else {
+            for (int i = 0; i < sweepOutputs.size(); ++i) {
+                sortOutput(sweepOutputs.get(i), variants.get(i));
+            }
+        }
+
+        LOGGER.info("Total runtime: " + (System.currentTimeMillis() - currentTime + "ms"));
+        return true;
+    }
+
+    // Run the jobs read from in, one at a time, and reply to each of them to out. A job is a line of options as on the
+    // command line, whose workspace is the one of the session.
+    private static void serveJobs(MiningSession session, Options options, BufferedReader in, PrintWriter out) throws
+            IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            long startTime = System.currentTimeMillis();
+            String reply;
+            try {
+                String[] lineArgs = line.split("\\s+");
+                String[] jobArgs = Arrays.copyOf(lineArgs, lineArgs.length + 2);
+                jobArgs[lineArgs.length] = "-w";
+                jobArgs[lineArgs.length + 1] = session.workspace;
+                CommandLine cmd = new DefaultParser().parse(options, jobArgs);
+                if (!cmd.getOptionValue("w").equals(session.workspace) || cmd.hasOption("daemon") || cmd.hasOption
+                        ("worker") || cmd.hasOption("coord")) {
+                    reply = "ERROR Jobs must use the workspace of the daemon and cannot be daemon, coordinator or " +
+                            "worker.";
+                } else if (runJob(cmd, jobArgs, options, session)) {
+                    reply = "DONE " + (System.currentTimeMillis() - startTime) + "ms";
                 } else {
-                    out.print("\n");
+                    reply = "ERROR Job cannot be run, see the log.";
                 }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Job failed: " + line, e);
+                reply = "ERROR " + e.getMessage();
+            }
+            synchronized (out) {
+                out.println(reply);
+                out.flush();
             }
         }
-        out.close();
+    }
 
-        LOGGER.info("Total runtime: " + (System.currentTimeMillis() - currentTime + "ms"));
+    // Serve jobs from standard input if source is '-', otherwise from connections to the port given by source. Jobs of
+    // different connections run concurrently on the same session.
+    private static void runDaemon(final MiningSession session, String source, final Options options) throws
+            IOException {
+        if (source.equals("-")) {
+            // Replies are the only output on the standard output, anything else the jobs print (configuration, echoed
+            // results) goes to the standard error.
+            PrintWriter replies = new PrintWriter(new OutputStreamWriter(System.out));
+            System.setOut(System.err);
+            serveJobs(session, options, new BufferedReader(new InputStreamReader(System.in)), replies);
+            return;
+        }
+        ServerSocket server = new ServerSocket(Integer.parseInt(source));
+        LOGGER.info("Daemon listening on port " + server.getLocalPort());
+        while (true) {
+            final Socket socket = server.accept();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveJobs(session, options, new BufferedReader(new InputStreamReader(socket
+                                .getInputStream())), new PrintWriter(new OutputStreamWriter(socket.getOutputStream())));
+                        socket.close();
+                    } catch (IOException e) {
+                        LOGGER.warning("Connection lost: " + e.getMessage());
+                    }
+                }
+            }).start();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+//        args = "-w ../data/imdb -em transe -o tmp -na 3 -ew 0 -ms 2 -nna 1 -nina 0".split("\\s++");
+
+        // Get config.
+        Options options = getOptions();
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            new HelpFormatter().printHelp("utility-name", options);
+            return;
+        }
+        if (cmd.hasOption("daemon")) {
+            runDaemon(new MiningSession(cmd.getOptionValue("w")), cmd.getOptionValue("daemon"), options);
+        } else {
+            runJob(cmd, args, options, null);
+        }
     }
 }
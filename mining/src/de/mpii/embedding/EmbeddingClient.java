@@ -3,11 +3,23 @@ package de.mpii.embedding;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
 /**
  * Created by hovinhthinh on 11/13/17.
@@ -15,12 +27,31 @@ import java.util.concurrent.ConcurrentHashMap;
 
 // Embeddding Client should support concurrent queries.
 public abstract class EmbeddingClient {
+    public static final Logger LOGGER = Logger.getLogger(EmbeddingClient.class.getName());
     public static final int SO_RANK_LIMIT = 10000;
-    protected static final int CACHE_LIMIT_PER_PREDICATE = 10000;
+    // Default memory budget of the rank cache.
+    public static final long RANK_CACHE_MEMORY = 64L << 20;
+    // Candidate entities scored at a time against all queries of a batch, so that their embeddings stay in cache.
+    private static final int RANK_BLOCK_SIZE = 512;
+    // Facts whose ranks are computed both with and without the entity index when it is loaded.
+    private static final int INDEX_CHECK_SAMPLE = 100;
     private static boolean NEGATIVE_TRAINING_ONLY = false;
     protected int nEntities, nRelations, eLength;
     protected FactEncodedSetPerPredicate[] trueFacts;
-    protected ConcurrentHashMap<Long, Double>[] cachedRankQueries;
+    protected volatile RankCache rankCache;
+    // File the rank cache was last loaded from.
+    private File rankCacheFile;
+    // Ranks being computed, by key of the rank cache: concurrent requests of the same fact wait for them instead of
+    // computing them again.
+    private final ConcurrentHashMap<Long, CompletableFuture<Double>> runningRanks = new ConcurrentHashMap<>();
+    private final LongAdder coalescedRanks = new LongAdder();
+    // Sorted scores of the candidates of sides requested often, ranks on those sides need no pass over all entities.
+    // Disabled until given memory.
+    private final ScoreProfileCache scoreProfiles = new ScoreProfileCache(0);
+    // Set by loadIndex, ranks are then counted with the index instead of a pass over all entities, with an error of
+    // inverted ranks up to indexError.
+    private volatile EntityIndex index;
+    private double indexError;
 
     public EmbeddingClient(String workspace) {
         try {
@@ -41,11 +72,10 @@ public abstract class EmbeddingClient {
             metaIn.close();
 
             trueFacts = new FactEncodedSetPerPredicate[nRelations];
-            cachedRankQueries = new ConcurrentHashMap[nRelations];
             for (int i = 0; i < nRelations; ++i) {
                 trueFacts[i] = new FactEncodedSetPerPredicate();
-                cachedRankQueries[i] = new ConcurrentHashMap<>();
             }
+            rankCache = new RankCache(nEntities, RANK_CACHE_MEMORY);
 
             if (NEGATIVE_TRAINING_ONLY) {
                 // Read true facts;
@@ -75,6 +105,9 @@ public abstract class EmbeddingClient {
                 }
                 idealIn.close();
             }
+            for (int i = 0; i < nRelations; ++i) {
+                trueFacts[i].buildIndex();
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -85,37 +118,571 @@ public abstract class EmbeddingClient {
     public abstract double getScore(int subject, int predicate, int object);
 
     public double getInvertedRank(int subject, int predicate, int object) {
-        long encoded = EmbeddingClient.FactEncodedSetPerPredicate.encode(subject, object);
-        if (cachedRankQueries[predicate].containsKey(encoded)) {
-            return cachedRankQueries[predicate].get(encoded);
-        }
-        int rankH = 1;
-        int rankT = 1;
-        double score = getScore(subject, predicate, object);
-        for (int i = 0; i < nEntities; ++i) {
-            if (i == subject || i == object) {
+        double cached = rankCache.get(predicate, subject, object);
+        if (!Double.isNaN(cached)) {
+            return cached;
+        }
+        if (index != null) {
+            return getInvertedRanks(predicate, new int[]{subject}, new int[]{object})[0];
+        }
+        long key = rankCache.getKey(predicate, subject, object);
+        CompletableFuture<Double> future = new CompletableFuture<>();
+        CompletableFuture<Double> running = runningRanks.putIfAbsent(key, future);
+        if (running != null) {
+            coalescedRanks.increment();
+            return await(running);
+        }
+        try {
+            // The rank may have been computed since the cache was checked.
+            double irank = rankCache.peek(predicate, subject, object);
+            if (Double.isNaN(irank)) {
+                double threshold = getScore(subject, predicate, object) + 1e-6;
+                int rankH = getSideRank(predicate, false, threshold, subject, object);
+                int rankT = getSideRank(predicate, true, threshold, subject, object);
+                irank = 0.5 / rankH + 0.5 / rankT;
+                rankCache.put(predicate, subject, object, irank);
+            }
+            future.complete(irank);
+            return irank;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            runningRanks.remove(key, future);
+        }
+    }
+
+    // Rank, capped at SO_RANK_LIMIT, of the subject (or object with tail) of a fact, by the score profile of its side
+    // if any, else by a pass over all entities, whose scores give the profile of the side if often requested.
+    private int getSideRank(int predicate, boolean tail, double threshold, int subject, int object) {
+        int entity = tail ? subject : object;
+        long key = ScoreProfileCache.getKey(predicate, entity, tail, nEntities);
+        ScoreProfileCache.Profile profile = scoreProfiles.get(key);
+        if (profile != null) {
+            return profile.getRank(threshold, SO_RANK_LIMIT);
+        }
+        int[] known = tail ? trueFacts[predicate].getObjects(subject) : trueFacts[predicate].getSubjects(object);
+        double[] scores = new double[nEntities];
+        if (tail) {
+            scoreAllTails(subject, predicate, scores);
+        } else {
+            scoreAllHeads(predicate, object, scores);
+        }
+        if (scoreProfiles.isRequestedOften(key)) {
+            scoreProfiles.put(key, ScoreProfileCache.Profile.build(scores, entity, known, SO_RANK_LIMIT));
+        }
+        return Math.min(1 + countAbove(scores, 0, nEntities, threshold, subject, object, known), SO_RANK_LIMIT);
+    }
+
+    // Value of a rank computed by another request, with its exception if it failed.
+    private static double await(CompletableFuture<Double> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Requests of ranks which waited for the same rank requested by another caller.
+    public long getCoalescedRanks() {
+        return coalescedRanks.sum();
+    }
+
+    // Scores of (subject, predicate, i) for every entity i, into scores[i].
+    public void scoreAllTails(int subject, int predicate, double[] scores) {
+        ScoreQuery query = getTailQuery(subject, predicate);
+        CandidateBlock candidates = new CandidateBlock(getCandidateTables(), eLength);
+        double[] blockScores = new double[RANK_BLOCK_SIZE];
+        for (int from = 0; from < nEntities; from += RANK_BLOCK_SIZE) {
+            candidates.load(from, Math.min(from + RANK_BLOCK_SIZE, nEntities));
+            getTailScores(query, candidates, blockScores, Double.NEGATIVE_INFINITY);
+            System.arraycopy(blockScores, 0, scores, from, candidates.to - from);
+        }
+    }
+
+    // Scores of (i, predicate, object) for every entity i, into scores[i].
+    public void scoreAllHeads(int predicate, int object, double[] scores) {
+        ScoreQuery query = getHeadQuery(object, predicate);
+        CandidateBlock candidates = new CandidateBlock(getCandidateTables(), eLength);
+        double[] blockScores = new double[RANK_BLOCK_SIZE];
+        for (int from = 0; from < nEntities; from += RANK_BLOCK_SIZE) {
+            candidates.load(from, Math.min(from + RANK_BLOCK_SIZE, nEntities));
+            getHeadScores(query, candidates, blockScores, Double.NEGATIVE_INFINITY);
+            System.arraycopy(blockScores, 0, scores, from, candidates.to - from);
+        }
+    }
+
+    // Entity tables read by getTailScores and getHeadScores, given to them by dimension for each block of candidates.
+    protected EmbeddingMatrix[] getCandidateTables() {
+        return new EmbeddingMatrix[0];
+    }
+
+    // Query of the scores of (subject, predicate, ?), with the vectors used for all blocks of candidates.
+    protected ScoreQuery getTailQuery(int subject, int predicate) {
+        return new ScoreQuery(subject, predicate);
+    }
+
+    // Query of the scores of (?, predicate, object).
+    protected ScoreQuery getHeadQuery(int object, int predicate) {
+        return new ScoreQuery(object, predicate);
+    }
+
+    // Scores of (subject, predicate, i) for the candidates i of the block, into scores[i - from]. Must give the values
+    // of getScore, up to rounding, except for scores not above threshold, which may be given as any value not above
+    // it: clients may then stop computing scores which are known to be too low.
+    protected void getTailScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        for (int i = candidates.from; i < candidates.to; ++i) {
+            scores[i - candidates.from] = getScore(query.entity, query.predicate, i);
+        }
+    }
+
+    // Scores of (i, predicate, object) for the candidates i of the block, into scores[i - from].
+    protected void getHeadScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        for (int i = candidates.from; i < candidates.to; ++i) {
+            scores[i - candidates.from] = getScore(i, query.predicate, query.entity);
+        }
+    }
+
+    // Metric of the entity index, null if the scores of the client cannot be bounded on balls of entities.
+    protected EntityIndex.Metric getIndexMetric() {
+        return null;
+    }
+
+    // Index query giving the scores of getTailScores for the entities of the index.
+    protected EntityIndex.Query getTailIndexQuery(ScoreQuery query) {
+        return null;
+    }
+
+    // Index query giving the scores of getHeadScores for the entities of the index.
+    protected EntityIndex.Query getHeadIndexQuery(ScoreQuery query) {
+        return null;
+    }
+
+    public RankCache getRankCache() {
+        return rankCache;
+    }
+
+    // Resize the rank cache to memory bytes, keeping its entries. Clients are shared, so a cache in use is only grown.
+    public synchronized void setRankCacheMemory(long memory) {
+        int capacity = RankCache.getCapacity(memory);
+        boolean unused = rankCache.getHits() + rankCache.getMisses() == 0 && rankCache.getSize() == 0;
+        if (capacity > rankCache.getCapacity() || (capacity < rankCache.getCapacity() && unused)) {
+            RankCache cache = new RankCache(nEntities, memory);
+            cache.addAll(rankCache);
+            rankCache = cache;
+        }
+    }
+
+    // Add the ranks cached in file by an earlier run on the same embedding, identified by checksum. Loading the same
+    // file again has no effect.
+    public synchronized void loadRankCache(File file, long checksum) {
+        if (!file.equals(rankCacheFile)) {
+            rankCache.load(file, checksum);
+            rankCacheFile = file;
+        }
+    }
+
+    public void saveRankCache(File file, long checksum) throws IOException {
+        rankCache.save(file, checksum);
+        LOGGER.info("Saved rank cache to " + file.getPath() + ".");
+    }
+
+    public ScoreProfileCache getScoreProfiles() {
+        return scoreProfiles;
+    }
+
+    // Set the memory budget of the score profiles, 0 disables them. Clients are shared, so profiles in use are only
+    // given more memory.
+    public synchronized void setScoreProfileMemory(long memory) {
+        boolean unused = scoreProfiles.getHits() + scoreProfiles.getBuilds() == 0;
+        if (memory > scoreProfiles.getMemory() || unused) {
+            scoreProfiles.setMemory(memory);
+        }
+    }
+
+    // Load the index of the entities saved next to the embedding file, or build it, and compare its inverted ranks,
+    // with an error up to maxError, to the exact ones on a sample of facts.
+    public synchronized void loadIndex(File embeddingFile, double maxError) {
+        if (index != null) {
+            return;
+        }
+        EntityIndex.Metric metric = getIndexMetric();
+        if (metric == null) {
+            LOGGER.warning("Embedding model cannot be indexed, ranks are counted over all entities.");
+            return;
+        }
+        EntityIndex loaded = EntityIndex.load(new File(embeddingFile.getPath() + ".index"), getCandidateTables()[0],
+                metric, embeddingFile.lastModified());
+        indexError = maxError;
+        checkIndex(loaded);
+        index = loaded;
+    }
+
+    // Sampled facts have a random subject and predicate, and a known object of them if any.
+    private void checkIndex(EntityIndex index) {
+        Random random = new Random(0);
+        int n = INDEX_CHECK_SAMPLE, exact = 0;
+        double error = 0;
+        long indexTime = 0, scanTime = 0;
+        for (int k = 0; k < n; ++k) {
+            int predicate = random.nextInt(nRelations), subject = random.nextInt(nEntities);
+            int[] known = trueFacts[predicate].getObjects(subject);
+            int object = known.length > 0 ? known[random.nextInt(known.length)] : random.nextInt(nEntities);
+            int[] subjects = new int[]{subject}, objects = new int[]{object};
+            double[] rankH = new double[1], rankT = new double[1], exactH = new double[1], exactT = new double[1];
+            long time = System.nanoTime();
+            countRanks(predicate, subjects, objects, rankH, rankT, index);
+            indexTime += System.nanoTime() - time;
+            time = System.nanoTime();
+            countRanks(predicate, subjects, objects, exactH, exactT, null);
+            scanTime += System.nanoTime() - time;
+            double e = Math.abs(0.5 / rankH[0] + 0.5 / rankT[0] - (0.5 / exactH[0] + 0.5 / exactT[0]));
+            exact += e == 0 ? 1 : 0;
+            error = Math.max(error, e);
+        }
+        LOGGER.info(String.format("Entity index: %d/%d sampled inverted ranks exact, max error %.2g, %.2fms per fact " +
+                "against %.2fms over all entities.", exact, n, error, indexTime / 1e6 / n, scanTime / 1e6 / n));
+    }
+
+    // Queries sharing their subject (or object), with the known objects (or subjects) of that entity.
+    private static class RankGroup {
+        int entity;
+        List<Integer> queries = new ArrayList<>();
+        int[] known;
+        ScoreQuery query;
+        // Scores of all candidates, kept to build the score profile of the side.
+        double[] scores;
+    }
+
+    private static void group(Map<Integer, RankGroup> groups, int entity, int query) {
+        RankGroup group = groups.get(entity);
+        if (group == null) {
+            group = new RankGroup();
+            group.entity = entity;
+            groups.put(entity, group);
+        }
+        group.queries.add(query);
+    }
+
+    // Whether the rank of a query of the group can still grow.
+    private static boolean isPending(RankGroup group, int[] rank) {
+        for (int q : group.queries) {
+            if (rank[q] < SO_RANK_LIMIT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Lowest threshold of the queries of the group whose rank can still grow: scores not above it are not counted.
+    private static double getLowestThreshold(RankGroup group, int[] rank, double[] threshold) {
+        double lowest = Double.POSITIVE_INFINITY;
+        for (int q : group.queries) {
+            if (rank[q] < SO_RANK_LIMIT) {
+                lowest = Math.min(lowest, threshold[q]);
+            }
+        }
+        return lowest;
+    }
+
+    // Number of candidates i in [from, to) with scores[i - from] > t, other than subject, object and the sorted known
+    // candidates.
+    private static int countAbove(double[] scores, int from, int to, double t, int subject, int object, int[] known) {
+        int count = 0;
+        for (int i = 0; i < to - from; ++i) {
+            count += scores[i] > t ? 1 : 0;
+        }
+        if (subject >= from && subject < to && scores[subject - from] > t) {
+            --count;
+        }
+        if (object != subject && object >= from && object < to && scores[object - from] > t) {
+            --count;
+        }
+        int k = Arrays.binarySearch(known, from);
+        for (k = k < 0 ? -k - 1 : k; k < known.length && known[k] < to; ++k) {
+            if (known[k] != subject && known[k] != object && scores[known[k] - from] > t) {
+                --count;
+            }
+        }
+        return count;
+    }
+
+    // Rank given by countAbove over all entities, estimated with the index.
+    private double getRank(EntityIndex index, EntityIndex.Query query, double t, int subject, int object, int[] known) {
+        double[] points = index.getPoints();
+        int excluded = 0;
+        if (query.getScore(points, index.getPosition(subject)) > t) {
+            ++excluded;
+        }
+        if (object != subject && query.getScore(points, index.getPosition(object)) > t) {
+            ++excluded;
+        }
+        for (int e : known) {
+            if (e != subject && e != object && query.getScore(points, index.getPosition(e)) > t) {
+                ++excluded;
+            }
+        }
+        return index.getRank(query, t, -excluded, SO_RANK_LIMIT, indexError);
+    }
+
+    // Same as getInvertedRank for each fact (subjects[i], predicate, objects[i]), computed in a single pass over the
+    // entities, or with the entity index if loaded. Facts sharing their subject share the scores of the candidate
+    // objects, and facts sharing their object the scores of the candidate subjects.
+    //
+    // Facts being computed by other requests are waited for once the others are computed, so that requests waiting
+    // for each other's facts never block each other.
+    public double[] getInvertedRanks(int predicate, int[] subjects, int[] objects) {
+        int n = subjects.length;
+        double[] irank = new double[n];
+        int[] pending = new int[n], waiting = new int[n];
+        long[] keys = new long[n];
+        List<CompletableFuture<Double>> futures = new ArrayList<>(n), running = new ArrayList<>();
+        int m = 0, w = 0;
+        for (int q = 0; q < n; ++q) {
+            double cached = rankCache.get(predicate, subjects[q], objects[q]);
+            if (!Double.isNaN(cached)) {
+                irank[q] = cached;
+                continue;
+            }
+            long key = rankCache.getKey(predicate, subjects[q], objects[q]);
+            CompletableFuture<Double> future = new CompletableFuture<>();
+            CompletableFuture<Double> other = runningRanks.putIfAbsent(key, future);
+            if (other != null) {
+                coalescedRanks.increment();
+                waiting[w++] = q;
+                running.add(other);
                 continue;
             }
-            if (rankH < SO_RANK_LIMIT && !trueFacts[predicate].containFact(i, object) && getScore(i, predicate, object) > score + 1e-6) {
-                ++rankH;
+            // The rank may have been computed since the cache was checked.
+            cached = rankCache.peek(predicate, subjects[q], objects[q]);
+            if (!Double.isNaN(cached)) {
+                irank[q] = cached;
+                future.complete(cached);
+                runningRanks.remove(key, future);
+                continue;
+            }
+            pending[m] = q;
+            keys[m++] = key;
+            futures.add(future);
+        }
+        try {
+            int[] pendingSubjects = new int[m], pendingObjects = new int[m];
+            for (int k = 0; k < m; ++k) {
+                pendingSubjects[k] = subjects[pending[k]];
+                pendingObjects[k] = objects[pending[k]];
+            }
+            double[] rankH = new double[m], rankT = new double[m];
+            countRanks(predicate, pendingSubjects, pendingObjects, rankH, rankT, index);
+            for (int k = 0; k < m; ++k) {
+                int q = pending[k];
+                irank[q] = 0.5 / rankH[k] + 0.5 / rankT[k];
+                rankCache.put(predicate, subjects[q], objects[q], irank[q]);
+                futures.get(k).complete(irank[q]);
             }
-            if (rankT < SO_RANK_LIMIT && !trueFacts[predicate].containFact(subject, i) && getScore(subject, predicate, i) > score + 1e-6) {
-                ++rankT;
+        } catch (Throwable e) {
+            for (int k = 0; k < m; ++k) {
+                futures.get(k).completeExceptionally(e);
             }
-            if (rankH >= SO_RANK_LIMIT && rankT >= SO_RANK_LIMIT) {
-                break;
+            throw e;
+        } finally {
+            for (int k = 0; k < m; ++k) {
+                runningRanks.remove(keys[k], futures.get(k));
             }
         }
-        double irank = 0.5 / rankH + 0.5 / rankT;
-        if (cachedRankQueries[predicate].size() < CACHE_LIMIT_PER_PREDICATE) {
-            cachedRankQueries[predicate].put(encoded, irank);
+        for (int k = 0; k < w; ++k) {
+            irank[waiting[k]] = await(running.get(k));
         }
         return irank;
     }
 
+    // Ranks of the subjects and objects of the facts, capped at SO_RANK_LIMIT.
+    private void countRanks(int predicate, int[] subjects, int[] objects, double[] rankH, double[] rankT,
+                            EntityIndex index) {
+        int n = subjects.length;
+        double[] threshold = new double[n];
+        Map<Integer, RankGroup> bySubject = new LinkedHashMap<>(), byObject = new LinkedHashMap<>();
+        for (int q = 0; q < n; ++q) {
+            threshold[q] = getScore(subjects[q], predicate, objects[q]) + 1e-6;
+            group(bySubject, subjects[q], q);
+            group(byObject, objects[q], q);
+        }
+        int[] countH = new int[n], countT = new int[n];
+        Arrays.fill(countH, 1);
+        Arrays.fill(countT, 1);
+        if (index == null) {
+            rankByProfiles(predicate, bySubject, true, threshold, countT);
+            rankByProfiles(predicate, byObject, false, threshold, countH);
+        }
+        FactEncodedSetPerPredicate facts = trueFacts[predicate];
+        for (RankGroup group : bySubject.values()) {
+            group.known = facts.getObjects(group.entity);
+            group.query = getTailQuery(group.entity, predicate);
+        }
+        for (RankGroup group : byObject.values()) {
+            group.known = facts.getSubjects(group.entity);
+            group.query = getHeadQuery(group.entity, predicate);
+        }
+        if (index != null) {
+            for (RankGroup group : bySubject.values()) {
+                EntityIndex.Query query = getTailIndexQuery(group.query);
+                for (int q : group.queries) {
+                    rankT[q] = getRank(index, query, threshold[q], group.entity, objects[q], group.known);
+                }
+            }
+            for (RankGroup group : byObject.values()) {
+                EntityIndex.Query query = getHeadIndexQuery(group.query);
+                for (int q : group.queries) {
+                    rankH[q] = getRank(index, query, threshold[q], subjects[q], group.entity, group.known);
+                }
+            }
+            return;
+        }
+        // Candidates scoring above a fact are counted in a branch-free loop, the known facts among them are then
+        // subtracted. Groups keeping their scores are scored exactly.
+        CandidateBlock candidates = new CandidateBlock(getCandidateTables(), eLength);
+        double[] scores = new double[RANK_BLOCK_SIZE];
+        for (int from = 0; from < nEntities && (!bySubject.isEmpty() || !byObject.isEmpty()); from +=
+                RANK_BLOCK_SIZE) {
+            int to = Math.min(from + RANK_BLOCK_SIZE, nEntities);
+            candidates.load(from, to);
+            for (RankGroup group : bySubject.values()) {
+                if (!isPending(group, countT)) {
+                    // Scores of the remaining candidates are not computed, nor the profile of the side.
+                    group.scores = null;
+                    continue;
+                }
+                getTailScores(group.query, candidates, scores, group.scores == null ? getLowestThreshold(group, countT,
+                        threshold) : Double.NEGATIVE_INFINITY);
+                if (group.scores != null) {
+                    System.arraycopy(scores, 0, group.scores, from, to - from);
+                }
+                for (int q : group.queries) {
+                    if (countT[q] < SO_RANK_LIMIT) {
+                        countT[q] += countAbove(scores, from, to, threshold[q], group.entity, objects[q], group.known);
+                    }
+                }
+            }
+            for (RankGroup group : byObject.values()) {
+                if (!isPending(group, countH)) {
+                    // Scores of the remaining candidates are not computed, nor the profile of the side.
+                    group.scores = null;
+                    continue;
+                }
+                getHeadScores(group.query, candidates, scores, group.scores == null ? getLowestThreshold(group, countH,
+                        threshold) : Double.NEGATIVE_INFINITY);
+                if (group.scores != null) {
+                    System.arraycopy(scores, 0, group.scores, from, to - from);
+                }
+                for (int q : group.queries) {
+                    if (countH[q] < SO_RANK_LIMIT) {
+                        countH[q] += countAbove(scores, from, to, threshold[q], subjects[q], group.entity, group.known);
+                    }
+                }
+            }
+        }
+        buildProfiles(predicate, bySubject, true);
+        buildProfiles(predicate, byObject, false);
+        for (int q = 0; q < n; ++q) {
+            rankH[q] = Math.min(countH[q], SO_RANK_LIMIT);
+            rankT[q] = Math.min(countT[q], SO_RANK_LIMIT);
+        }
+    }
+
+    // Ranks of the queries of the groups on a side with a score profile, into rank, those groups being removed. The
+    // other groups keep their scores if their side was often requested.
+    private void rankByProfiles(int predicate, Map<Integer, RankGroup> groups, boolean tail, double[] threshold,
+                                int[] rank) {
+        for (Iterator<RankGroup> it = groups.values().iterator(); it.hasNext(); ) {
+            RankGroup group = it.next();
+            long key = ScoreProfileCache.getKey(predicate, group.entity, tail, nEntities);
+            ScoreProfileCache.Profile profile = scoreProfiles.get(key);
+            if (profile != null) {
+                for (int q : group.queries) {
+                    rank[q] = profile.getRank(threshold[q], SO_RANK_LIMIT);
+                }
+                it.remove();
+            } else if (scoreProfiles.isRequestedOften(key)) {
+                group.scores = new double[nEntities];
+            }
+        }
+    }
+
+    private void buildProfiles(int predicate, Map<Integer, RankGroup> groups, boolean tail) {
+        for (RankGroup group : groups.values()) {
+            if (group.scores != null) {
+                long key = ScoreProfileCache.getKey(predicate, group.entity, tail, nEntities);
+                scoreProfiles.put(key, ScoreProfileCache.Profile.build(group.scores, group.entity, group.known,
+                        SO_RANK_LIMIT));
+            }
+        }
+    }
+
+    // Entity and predicate fixed by scores, with the vectors derived from them by the client.
+    protected static class ScoreQuery {
+        public int entity, predicate;
+        public double[][] vectors;
+
+        public ScoreQuery(int entity, int predicate, double[]... vectors) {
+            this.entity = entity;
+            this.predicate = predicate;
+            this.vectors = vectors;
+        }
+    }
+
+    // Embeddings of the candidate entities [from, to) by dimension: columns[t][i][e - from] is dimension i of entity e
+    // in table t of getCandidateTables. Loops over the candidates of a dimension thus read consecutive values, and are
+    // vectorized by the JIT.
+    protected static class CandidateBlock {
+        public int from, to;
+        public double[][][] columns;
+        private EmbeddingMatrix[] tables;
+        private CandidateBlock selection;
+
+        CandidateBlock(EmbeddingMatrix[] tables, int eLength) {
+            this.tables = tables;
+            columns = new double[tables.length][eLength][RANK_BLOCK_SIZE];
+        }
+
+        // Block of the candidates from + indices[k], k < n, by dimension as well: columns[t][i][k] is dimension i of
+        // candidate from + indices[k]. The returned block is reused by the next call.
+        public CandidateBlock select(int[] indices, int n) {
+            if (selection == null) {
+                selection = new CandidateBlock(tables, columns[0].length);
+            }
+            selection.from = 0;
+            selection.to = n;
+            for (int t = 0; t < columns.length; ++t) {
+                for (int i = 0; i < columns[t].length; ++i) {
+                    double[] column = columns[t][i], selected = selection.columns[t][i];
+                    for (int k = 0; k < n; ++k) {
+                        selected[k] = column[indices[k]];
+                    }
+                }
+            }
+            return selection;
+        }
+
+        void load(int from, int to) {
+            this.from = from;
+            this.to = to;
+            for (int t = 0; t < tables.length; ++t) {
+                tables[t].getColumns(from, to, columns[t]);
+            }
+        }
+    }
+
     protected static class FactEncodedSetPerPredicate {
         private static final long BASE = 1000000000;
+        private static final int[] EMPTY = new int[0];
         private HashSet<Long> set = new HashSet<>();
+        // Sorted objects of each subject and subjects of each object, built by buildIndex.
+        private HashMap<Integer, int[]> objectsBySubject, subjectsByObject;
 
         public static long encode(int subject, int object) {
             return ((long) subject) * BASE + object;
@@ -128,5 +695,40 @@ public abstract class EmbeddingClient {
         public boolean containFact(int subject, int object) {
             return set.contains(encode(subject, object));
         }
+
+        // Must be called once all facts are added.
+        public void buildIndex() {
+            HashMap<Integer, ArrayList<Integer>> objects = new HashMap<>(), subjects = new HashMap<>();
+            for (long code : set) {
+                int subject = (int) (code / BASE), object = (int) (code % BASE);
+                objects.computeIfAbsent(subject, k -> new ArrayList<>()).add(object);
+                subjects.computeIfAbsent(object, k -> new ArrayList<>()).add(subject);
+            }
+            objectsBySubject = toSortedArrays(objects);
+            subjectsByObject = toSortedArrays(subjects);
+        }
+
+        private static HashMap<Integer, int[]> toSortedArrays(HashMap<Integer, ArrayList<Integer>> lists) {
+            HashMap<Integer, int[]> arrays = new HashMap<>();
+            for (Map.Entry<Integer, ArrayList<Integer>> e : lists.entrySet()) {
+                int[] array = new int[e.getValue().size()];
+                for (int i = 0; i < array.length; ++i) {
+                    array[i] = e.getValue().get(i);
+                }
+                Arrays.sort(array);
+                arrays.put(e.getKey(), array);
+            }
+            return arrays;
+        }
+
+        public int[] getObjects(int subject) {
+            int[] objects = objectsBySubject.get(subject);
+            return objects == null ? EMPTY : objects;
+        }
+
+        public int[] getSubjects(int object) {
+            int[] subjects = subjectsByObject.get(object);
+            return subjects == null ? EMPTY : subjects;
+        }
     }
 }
@@ -0,0 +1,193 @@
+package de.mpii.embedding;
+
+import de.mpii.util.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Embeddings of a table (entities, relations...), one row per element, stored contiguously by row in double or float
+ * precision.
+ * <p>
+ * Matrices are mapped from the embedding file instead of being copied to the heap. In float precision, they are mapped
+ * from a float copy of the file, written next to it on first use, or kept on the heap if that copy cannot be written.
+ */
+public class EmbeddingMatrix {
+    public static final Logger LOGGER = Logger.getLogger(EmbeddingMatrix.class.getName());
+
+    private static final String FLOAT_COPY_SUFFIX = ".f32";
+
+    public final int rows, columns;
+    // The rows are split into chunks of rowsPerChunk rows, so that each chunk can be mapped as one buffer. Exactly one
+    // of doubles and floats is set.
+    private int rowsPerChunk;
+    private DoubleBuffer[] doubles;
+    private FloatBuffer[] floats;
+
+    private EmbeddingMatrix(int rows, int columns, int rowsPerChunk, DoubleBuffer[] doubles, FloatBuffer[] floats) {
+        this.rows = rows;
+        this.columns = columns;
+        this.rowsPerChunk = rowsPerChunk;
+        this.doubles = doubles;
+        this.floats = floats;
+    }
+
+    // Largest number of rows whose values of the given size in bytes fit in a buffer.
+    private static int getRowsPerChunk(int columns, int valueBytes) {
+        return Math.max(1, Integer.MAX_VALUE / (Math.max(columns, 1) * valueBytes));
+    }
+
+    private static int getNumChunks(int rows, int rowsPerChunk) {
+        return rows == 0 ? 0 : (rows - 1) / rowsPerChunk + 1;
+    }
+
+    public double get(int row, int column) {
+        int index = (row % rowsPerChunk) * columns + column;
+        return doubles != null ? doubles[row / rowsPerChunk].get(index) : floats[row / rowsPerChunk].get(index);
+    }
+
+    public void getRow(int row, double[] values) {
+        int chunk = row / rowsPerChunk, index = (row % rowsPerChunk) * columns;
+        for (int j = 0; j < columns; ++j) {
+            values[j] = doubles != null ? doubles[chunk].get(index + j) : floats[chunk].get(index + j);
+        }
+    }
+
+    // Rows [from, to) by column, into values[column][row - from]. The rows of each chunk are read at once, which is
+    // much faster than reading values one by one from a mapped file.
+    public void getColumns(int from, int to, double[][] values) {
+        double[] rowValues = new double[(to - from) * columns];
+        float[] floatValues = floats == null ? null : new float[rowValues.length];
+        for (int row = from; row < to; ) {
+            int chunk = row / rowsPerChunk, n = Math.min(to, (chunk + 1) * rowsPerChunk) - row;
+            int position = (row % rowsPerChunk) * columns, offset = (row - from) * columns;
+            if (doubles != null) {
+                DoubleBuffer buffer = doubles[chunk].duplicate();
+                buffer.position(position);
+                buffer.get(rowValues, offset, n * columns);
+            } else {
+                FloatBuffer buffer = floats[chunk].duplicate();
+                buffer.position(position);
+                buffer.get(floatValues, offset, n * columns);
+                for (int k = offset; k < offset + n * columns; ++k) {
+                    rowValues[k] = floatValues[k];
+                }
+            }
+            row += n;
+        }
+        for (int i = 0; i < to - from; ++i) {
+            for (int j = 0; j < columns; ++j) {
+                values[j][i] = rowValues[i * columns + j];
+            }
+        }
+    }
+
+    // Matrices of the given numbers of rows stored one after the other as doubles of the given byte order, from offset
+    // of the file.
+    public static EmbeddingMatrix[] map(File file, long offset, ByteOrder order, int columns, boolean floatPrecision,
+                                        int... rows) throws IOException {
+        EmbeddingMatrix[] matrices = new EmbeddingMatrix[rows.length];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long position = offset;
+            int rowsPerChunk = getRowsPerChunk(columns, Double.BYTES);
+            for (int k = 0; k < rows.length; ++k) {
+                DoubleBuffer[] doubles = new DoubleBuffer[getNumChunks(rows[k], rowsPerChunk)];
+                for (int c = 0; c < doubles.length; ++c) {
+                    long size = (long) Math.min(rowsPerChunk, rows[k] - c * rowsPerChunk) * columns * Double.BYTES;
+                    doubles[c] = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(order)
+                            .asDoubleBuffer();
+                    position += size;
+                }
+                matrices[k] = new EmbeddingMatrix(rows[k], columns, rowsPerChunk, doubles, null);
+            }
+        } finally {
+            in.close();
+        }
+        if (floatPrecision) {
+            matrices = toFloat(file, matrices);
+        }
+        return matrices;
+    }
+
+    private static EmbeddingMatrix[] toFloat(File file, EmbeddingMatrix[] matrices) throws IOException {
+        File copy = new File(file.getPath() + FLOAT_COPY_SUFFIX);
+        long size = 0;
+        for (EmbeddingMatrix m : matrices) {
+            size += (long) m.rows * m.columns * Float.BYTES;
+        }
+        if (!copy.exists() || copy.length() != size || copy.lastModified() < file.lastModified()) {
+            try {
+                writeFloatCopy(copy, matrices);
+                LOGGER.info("Float copy of embeddings written to " + copy.getPath() + ".");
+            } catch (IOException e) {
+                LOGGER.warning("Cannot write float copy of embeddings, keeping them on the heap: " + e.getMessage());
+                EmbeddingMatrix[] result = new EmbeddingMatrix[matrices.length];
+                for (int k = 0; k < matrices.length; ++k) {
+                    EmbeddingMatrix m = matrices[k];
+                    int rowsPerChunk = getRowsPerChunk(m.columns, Float.BYTES);
+                    FloatBuffer[] floats = new FloatBuffer[getNumChunks(m.rows, rowsPerChunk)];
+                    for (int c = 0; c < floats.length; ++c) {
+                        int from = c * rowsPerChunk, to = Math.min(m.rows, from + rowsPerChunk);
+                        float[] values = new float[(to - from) * m.columns];
+                        for (int i = from; i < to; ++i) {
+                            for (int j = 0; j < m.columns; ++j) {
+                                values[(i - from) * m.columns + j] = (float) m.get(i, j);
+                            }
+                        }
+                        floats[c] = FloatBuffer.wrap(values);
+                    }
+                    result[k] = new EmbeddingMatrix(m.rows, m.columns, rowsPerChunk, null, floats);
+                }
+                return result;
+            }
+        }
+        EmbeddingMatrix[] result = new EmbeddingMatrix[matrices.length];
+        RandomAccessFile in = new RandomAccessFile(copy, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long position = 0;
+            for (int k = 0; k < matrices.length; ++k) {
+                EmbeddingMatrix m = matrices[k];
+                int rowsPerChunk = getRowsPerChunk(m.columns, Float.BYTES);
+                FloatBuffer[] floats = new FloatBuffer[getNumChunks(m.rows, rowsPerChunk)];
+                for (int c = 0; c < floats.length; ++c) {
+                    long chunkSize = (long) Math.min(rowsPerChunk, m.rows - c * rowsPerChunk) * m.columns * Float.BYTES;
+                    floats[c] = channel.map(FileChannel.MapMode.READ_ONLY, position, chunkSize).order(ByteOrder
+                            .LITTLE_ENDIAN).asFloatBuffer();
+                    position += chunkSize;
+                }
+                result[k] = new EmbeddingMatrix(m.rows, m.columns, rowsPerChunk, null, floats);
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static void writeFloatCopy(File copy, EmbeddingMatrix[] matrices) throws IOException {
+        AtomicFile.write(copy, out -> {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (EmbeddingMatrix m : matrices) {
+                for (int i = 0; i < m.rows; ++i) {
+                    for (int j = 0; j < m.columns; ++j) {
+                        if (buffer.remaining() < Float.BYTES) {
+                            out.write(buffer.array(), 0, buffer.position());
+                            buffer.clear();
+                        }
+                        buffer.putFloat((float) m.get(i, j));
+                    }
+                }
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        });
+    }
+}
@@ -0,0 +1,360 @@
+package de.mpii.embedding;
+
+import de.mpii.util.AtomicFile;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Ball tree over the entity embeddings, counting the entities whose score for a query is above a threshold without
+ * scoring all of them.
+ * <p>
+ * Each node holds a range of entities, in tree order, within a radius of its pivot entity. A query bounds the scores
+ * of a node from its score at the pivot and the radius: nodes entirely above the threshold are counted, nodes entirely
+ * below are skipped, and only the entities of the remaining leaves are scored, exactly as the client does. Bounds are
+ * widened by a margin covering rounding, thus counts are exact.
+ * <p>
+ * Only the tree is saved, the radii are recomputed from the embeddings when it is loaded.
+ */
+public class EntityIndex {
+    public static final Logger LOGGER = Logger.getLogger(EntityIndex.class.getName());
+
+    private static final int VERSION = 1;
+    private static final int LEAF_SIZE = 64;
+
+    // Distance defining the balls: L1 for distance-based scores, L2 for scores based on an inner product.
+    public enum Metric {
+        L1, L2
+    }
+
+    // Scores of one query, with bounds on balls of entities.
+    public interface Query {
+        // Value at the pivot (at position of points) from which bounds are derived.
+        double getCenter(double[] points, int position);
+
+        double getLowerBound(double center, double radius);
+
+        double getUpperBound(double center, double radius);
+
+        // Exact score of the entity at position of points.
+        double getScore(double[] points, int position);
+    }
+
+    private Metric metric;
+    private int nEntities, dim;
+    // Entity embeddings in tree order, points[position * dim + i], and the entity at each position and back.
+    private double[] points;
+    private int[] order, positions;
+    // Nodes, each over positions [start, end), children are -1 for leaves.
+    private int[] start, end, pivot, left, right;
+    private double[] radius;
+
+    private EntityIndex(Metric metric, int nEntities, int dim) {
+        this.metric = metric;
+        this.nEntities = nEntities;
+        this.dim = dim;
+    }
+
+    public int getPosition(int entity) {
+        return positions[entity];
+    }
+
+    public double[] getPoints() {
+        return points;
+    }
+
+    // Index saved in file if it matches the embeddings, which are modified after lastModified, built and saved
+    // otherwise.
+    public static EntityIndex load(File file, EmbeddingMatrix entities, Metric metric, long lastModified) {
+        EntityIndex index = new EntityIndex(metric, entities.rows, entities.columns);
+        if (file.exists() && file.lastModified() >= lastModified) {
+            try {
+                if (index.read(file)) {
+                    index.setPoints(entities);
+                    LOGGER.info("Entity index loaded from " + file.getPath() + ".");
+                    return index;
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Cannot read entity index: " + e.getMessage());
+            }
+        }
+        long time = System.currentTimeMillis();
+        index = new EntityIndex(metric, entities.rows, entities.columns);
+        index.order = new int[index.nEntities];
+        for (int i = 0; i < index.nEntities; ++i) {
+            index.order[i] = i;
+        }
+        index.setPoints(entities);
+        index.build();
+        LOGGER.info("Entity index of " + index.start.length + " nodes built in " + (System.currentTimeMillis() - time)
+                + "ms.");
+        try {
+            index.write(file);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot save entity index: " + e.getMessage());
+        }
+        return index;
+    }
+
+    private void setPoints(EmbeddingMatrix entities) {
+        points = new double[nEntities * dim];
+        positions = new int[nEntities];
+        double[] row = new double[dim];
+        for (int p = 0; p < nEntities; ++p) {
+            entities.getRow(order[p], row);
+            System.arraycopy(row, 0, points, p * dim, dim);
+            positions[order[p]] = p;
+        }
+        if (start != null) {
+            setRadii();
+        }
+    }
+
+    private void setRadii() {
+        radius = new double[start.length];
+        for (int n = 0; n < start.length; ++n) {
+            for (int p = start[n]; p < end[n]; ++p) {
+                radius[n] = Math.max(radius[n], getDistance(pivot[n], p));
+            }
+        }
+    }
+
+    private double getDistance(int p, int q) {
+        double d = 0;
+        if (metric == Metric.L1) {
+            for (int i = 0; i < dim; ++i) {
+                d += Math.abs(points[p * dim + i] - points[q * dim + i]);
+            }
+            return d;
+        }
+        for (int i = 0; i < dim; ++i) {
+            double x = points[p * dim + i] - points[q * dim + i];
+            d += x * x;
+        }
+        return Math.sqrt(d);
+    }
+
+    // Nodes are split at the median distance to their pivot, the entity farthest from a random one of the node.
+    private void build() {
+        List<int[]> nodes = new ArrayList<>();
+        Random random = new Random(0);
+        buildNode(0, nEntities, nodes, random);
+        int n = nodes.size();
+        start = new int[n];
+        end = new int[n];
+        pivot = new int[n];
+        left = new int[n];
+        right = new int[n];
+        for (int i = 0; i < n; ++i) {
+            int[] node = nodes.get(i);
+            start[i] = node[0];
+            end[i] = node[1];
+            pivot[i] = node[2];
+            left[i] = node[3];
+            right[i] = node[4];
+        }
+        setRadii();
+    }
+
+    private int buildNode(int from, int to, List<int[]> nodes, Random random) {
+        int id = nodes.size();
+        int[] node = new int[]{from, to, -1, -1, -1};
+        nodes.add(node);
+        int seed = from + random.nextInt(to - from);
+        int far = seed;
+        double farDistance = -1;
+        for (int p = from; p < to; ++p) {
+            double d = getDistance(seed, p);
+            if (d > farDistance) {
+                farDistance = d;
+                far = p;
+            }
+        }
+        // The pivot is moved to the start of the node and left out of its children, so that it keeps its position.
+        swap(from, far);
+        node[2] = from;
+        if (to - from <= LEAF_SIZE) {
+            return id;
+        }
+        // Sort the other entities by distance to the pivot, the children split them.
+        int m = to - from - 1;
+        double[] distances = new double[m];
+        Integer[] sorted = new Integer[m];
+        for (int k = 0; k < m; ++k) {
+            sorted[k] = k;
+            distances[k] = getDistance(from, from + 1 + k);
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+        int[] entities = new int[m];
+        double[] values = new double[m * dim];
+        for (int k = 0; k < m; ++k) {
+            int p = from + 1 + sorted[k];
+            entities[k] = order[p];
+            System.arraycopy(points, p * dim, values, k * dim, dim);
+        }
+        for (int k = 0; k < m; ++k) {
+            order[from + 1 + k] = entities[k];
+            positions[entities[k]] = from + 1 + k;
+        }
+        System.arraycopy(values, 0, points, (from + 1) * dim, m * dim);
+        int middle = from + 1 + m / 2;
+        node[3] = buildNode(from + 1, middle, nodes, random);
+        node[4] = buildNode(middle, to, nodes, random);
+        return id;
+    }
+
+    private void swap(int p, int q) {
+        if (p == q) {
+            return;
+        }
+        int e = order[p];
+        order[p] = order[q];
+        order[q] = e;
+        positions[order[p]] = p;
+        positions[order[q]] = q;
+        for (int i = 0; i < dim; ++i) {
+            double x = points[p * dim + i];
+            points[p * dim + i] = points[q * dim + i];
+            points[q * dim + i] = x;
+        }
+    }
+
+    // Rank 1 + offset + n, with n the number of entities with a score above t, capped at limit. Nodes are visited by
+    // decreasing upper bound, until the entities counted and those left bound the inverse of the rank within twice the
+    // tolerance, the rank of the middle inverse is returned. Ranks are exact for a tolerance of 0.
+    public double getRank(Query query, double t, int offset, int limit, double tolerance) {
+        Count count = new Count(offset, limit, tolerance);
+        count.left = nEntities;
+        count(0, query.getCenter(points, pivot[0]), query, t, count);
+        double lower = count.getRank(count.above), upper = count.getRank(count.above + count.left);
+        return lower == upper ? lower : 2 / (1 / lower + 1 / upper);
+    }
+
+    private static class Count {
+        int offset, limit, above, left;
+        double tolerance;
+
+        Count(int offset, int limit, double tolerance) {
+            this.offset = offset;
+            this.limit = limit;
+            this.tolerance = tolerance;
+        }
+
+        double getRank(int above) {
+            return Math.min(limit, Math.max(1, 1 + offset + above));
+        }
+
+        boolean isDone() {
+            return 1 / getRank(above) - 1 / getRank(above + left) <= 2 * tolerance;
+        }
+    }
+
+    private void count(int node, double center, Query query, double t, Count count) {
+        // Bounds of the node, widened by a margin larger than the rounding of the scores.
+        double lower = query.getLowerBound(center, radius[node]);
+        double upper = query.getUpperBound(center, radius[node]);
+        double margin = 1e-9 * (1 + Math.abs(lower) + Math.abs(upper));
+        int size = end[node] - start[node];
+        if (upper + margin <= t) {
+            count.left -= size;
+            return;
+        }
+        if (lower - margin > t) {
+            count.above += size;
+            count.left -= size;
+            return;
+        }
+        if (left[node] == -1) {
+            for (int p = start[node]; p < end[node]; ++p) {
+                count.above += query.getScore(points, p) > t ? 1 : 0;
+            }
+            count.left -= size;
+            return;
+        }
+        count.above += query.getScore(points, pivot[node]) > t ? 1 : 0;
+        --count.left;
+        int first = left[node], second = right[node];
+        double firstCenter = query.getCenter(points, pivot[first]);
+        double secondCenter = query.getCenter(points, pivot[second]);
+        if (query.getUpperBound(secondCenter, radius[second]) > query.getUpperBound(firstCenter, radius[first])) {
+            first = right[node];
+            second = left[node];
+            double c = firstCenter;
+            firstCenter = secondCenter;
+            secondCenter = c;
+        }
+        count(first, firstCenter, query, t, count);
+        if (!count.isDone()) {
+            count(second, secondCenter, query, t, count);
+        }
+    }
+
+    private boolean read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION || in.readInt() != metric.ordinal() || in.readInt() != nEntities || in
+                    .readInt() != dim) {
+                return false;
+            }
+            order = new int[nEntities];
+            boolean[] seen = new boolean[nEntities];
+            for (int i = 0; i < nEntities; ++i) {
+                order[i] = in.readInt();
+                if (order[i] < 0 || order[i] >= nEntities || seen[order[i]]) {
+                    return false;
+                }
+                seen[order[i]] = true;
+            }
+            int n = in.readInt();
+            start = new int[n];
+            end = new int[n];
+            pivot = new int[n];
+            left = new int[n];
+            right = new int[n];
+            for (int i = 0; i < n; ++i) {
+                start[i] = in.readInt();
+                end[i] = in.readInt();
+                pivot[i] = in.readInt();
+                left[i] = in.readInt();
+                right[i] = in.readInt();
+                if (start[i] < 0 || end[i] > nEntities || pivot[i] < start[i] || pivot[i] >= end[i] || left[i] >= n
+                        || right[i] >= n) {
+                    return false;
+                }
+            }
+            return n > 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(File file) throws IOException {
+        AtomicFile.write(file, out -> {
+            out.writeInt(VERSION);
+            out.writeInt(metric.ordinal());
+            out.writeInt(nEntities);
+            out.writeInt(dim);
+            for (int e : order) {
+                out.writeInt(e);
+            }
+            out.writeInt(start.length);
+            for (int i = 0; i < start.length; ++i) {
+                out.writeInt(start[i]);
+                out.writeInt(end[i]);
+                out.writeInt(pivot[i]);
+                out.writeInt(left[i]);
+                out.writeInt(right[i]);
+            }
+        });
+    }
+}
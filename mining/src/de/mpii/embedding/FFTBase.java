@@ -1,94 +1,245 @@
 package de.mpii.embedding;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 public class FFTBase {
+    // Plans by length, shared by all threads: plans are not modified once built.
+    private static final ConcurrentHashMap<Integer, Plan> PLANS = new ConcurrentHashMap<>();
+    // Lengths up to which those that are not powers of two are transformed directly, in O(n^2), which is faster than
+    // the three transforms of Bluestein's algorithm.
+    private static final int DIRECT_LIMIT = 64;
+
     /**
-     * The Fast Fourier Transform (generic version, with NO optimizations).
+     * The Fast Fourier Transform, in place, of any length.
      *
      * @param xReal  an array of length n, the real part
      * @param xImag  an array of length n, the imaginary part
      * @param DIRECT TRUE = direct transform, FALSE = inverse transform
-     * @return 2 arrays of length n
      */
     public static void fft(double[] xReal, double[] xImag, boolean DIRECT) {
-        // - n is the dimension of the problem
-        // - nu is its logarithm in base e
-        int n = xReal.length;
+        getPlan(xReal.length).transform(xReal, xImag, DIRECT);
+    }
 
-        // Here I check if n is a power of 2. If exist decimals in ld, I quit
-        // from the function returning null.
-        if ((n & (n - 1)) != 0) {
-            throw new RuntimeException("The number of elements is not a power of 2.");
+    /**
+     * The plan of the transforms of length n, built on first use and then reused.
+     */
+    public static Plan getPlan(int n) {
+        Plan plan = PLANS.get(n);
+        if (plan == null) {
+            // Plans of other lengths may be built meanwhile, thus not within computeIfAbsent.
+            plan = new Plan(n);
+            Plan previous = PLANS.putIfAbsent(n, plan);
+            if (previous != null) {
+                plan = previous;
+            }
         }
+        return plan;
+    }
+
+    /**
+     * Transforms of a fixed length n, X[j] = sum_k x[k] exp(2 pi i j k / n) for the direct transform, with exponent
+     * -2 pi i j k / n for the inverse one, which is not scaled by 1 / n.
+     * <p>
+     * Powers of two run an iterative radix-2 transform over tables of twiddles and of the bit reversal. Other lengths
+     * are a convolution with a chirp (Bluestein's algorithm), itself computed by transforms of a power of two, or for
+     * short ones, the sum over a table of twiddles.
+     */
+    public static class Plan {
+        public final int n;
+        // cos and sin of 2 pi k / n, k < n / 2 for powers of two, k < n for direct transforms, and bit reversal of the
+        // indices for powers of two.
+        private double[] cos, sin;
+        private int[] reversed;
+        // Other lengths: chirp exp(i pi k^2 / n), k < n, transform of length m >= 2 n - 1 of the convolution, and
+        // transforms by the latter of the conjugate chirp (direct) and of the chirp (inverse).
+        private double[] chirpReal, chirpImag;
+        private Plan convolution;
+        private double[] directReal, directImag, inverseReal, inverseImag;
+        // Even lengths: transform of length n / 2 of the real transform, and cos and sin of 2 pi j / n, j <= n / 2.
+        private Plan half;
+        private double[] halfCos, halfSin;
 
-        // Declaration and initialization of the variables
-        // ld should be an integer, actually, so I don't lose any information in
-        // the cast
-        int nu = (int) (Math.log(n) / Math.log(2.0) + 1e-6), n2 = n >> 1, nu1 = nu - 1;
-        double tReal, tImag, p, arg, c, s;
+        private Plan(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("Transform length must be positive: " + n);
+            }
+            this.n = n;
+            if ((n & (n - 1)) == 0) {
+                cos = new double[n / 2];
+                sin = new double[n / 2];
+                for (int k = 0; k < n / 2; ++k) {
+                    cos[k] = Math.cos(2 * Math.PI * k / n);
+                    sin[k] = Math.sin(2 * Math.PI * k / n);
+                }
+                int bits = Integer.numberOfTrailingZeros(n);
+                reversed = new int[n];
+                for (int k = 1; k < n; ++k) {
+                    reversed[k] = (reversed[k >> 1] >> 1) | ((k & 1) << (bits - 1));
+                }
+            } else if (n <= DIRECT_LIMIT) {
+                cos = new double[n];
+                sin = new double[n];
+                for (int k = 0; k < n; ++k) {
+                    cos[k] = Math.cos(2 * Math.PI * k / n);
+                    sin[k] = Math.sin(2 * Math.PI * k / n);
+                }
+            } else {
+                chirpReal = new double[n];
+                chirpImag = new double[n];
+                for (int k = 0; k < n; ++k) {
+                    // k^2 modulo 2 n keeps the angle small, and thus accurate.
+                    double angle = Math.PI * ((long) k * k % (2L * n)) / n;
+                    chirpReal[k] = Math.cos(angle);
+                    chirpImag[k] = Math.sin(angle);
+                }
+                convolution = getPlan(Integer.highestOneBit(2 * n - 1) << 1);
+                int m = convolution.n;
+                directReal = new double[m];
+                directImag = new double[m];
+                inverseReal = new double[m];
+                inverseImag = new double[m];
+                for (int k = 0; k < n; ++k) {
+                    directReal[k] = inverseReal[k] = chirpReal[k];
+                    directImag[k] = -chirpImag[k];
+                    inverseImag[k] = chirpImag[k];
+                    if (k > 0) {
+                        directReal[m - k] = inverseReal[m - k] = chirpReal[k];
+                        directImag[m - k] = -chirpImag[k];
+                        inverseImag[m - k] = chirpImag[k];
+                    }
+                }
+                convolution.transform(directReal, directImag, true);
+                convolution.transform(inverseReal, inverseImag, true);
+            }
+            if (n % 2 == 0) {
+                half = getPlan(n / 2);
+                halfCos = new double[n / 2 + 1];
+                halfSin = new double[n / 2 + 1];
+                for (int j = 0; j <= n / 2; ++j) {
+                    halfCos[j] = Math.cos(2 * Math.PI * j / n);
+                    halfSin[j] = Math.sin(2 * Math.PI * j / n);
+                }
+            }
+        }
 
-        // Here I check if I'm going to do the direct transform or the inverse
-        // transform.
-        double constant;
-        if (DIRECT)
-            constant = -2 * Math.PI;
-        else
-            constant = 2 * Math.PI;
+        /**
+         * Direct or inverse transform of xReal + i xImag, in place.
+         */
+        public void transform(double[] xReal, double[] xImag, boolean direct) {
+            if (xReal.length != n || xImag.length != n) {
+                throw new IllegalArgumentException("Transform of length " + n + " given " + xReal.length + " values.");
+            }
+            if (reversed != null) {
+                transformRadix2(xReal, xImag, direct ? 1 : -1);
+            } else if (convolution == null) {
+                transformDirect(xReal, xImag, direct ? 1 : -1);
+            } else {
+                transformBluestein(xReal, xImag, direct);
+            }
+        }
 
-        // First phase - calculation
-        int k = 0;
-        for (int l = 1; l <= nu; ++l) {
-            while (k < n) {
-                for (int i = 1; i <= n2; ++i) {
-                    p = bitreverseReference(k >> nu1, nu);
-                    // direct FFT or inverse FFT
-                    arg = constant * p / n;
-                    c = Math.cos(arg);
-                    s = Math.sin(arg);
-                    tReal = xReal[k + n2] * c + xImag[k + n2] * s;
-                    tImag = xImag[k + n2] * c - xReal[k + n2] * s;
-                    xReal[k + n2] = xReal[k] - tReal;
-                    xImag[k + n2] = xImag[k] - tImag;
-                    xReal[k] += tReal;
-                    xImag[k] += tImag;
-                    k++;
+        private void transformRadix2(double[] xReal, double[] xImag, double sign) {
+            for (int k = 0; k < n; ++k) {
+                int r = reversed[k];
+                if (r > k) {
+                    double t = xReal[k];
+                    xReal[k] = xReal[r];
+                    xReal[r] = t;
+                    t = xImag[k];
+                    xImag[k] = xImag[r];
+                    xImag[r] = t;
+                }
+            }
+            for (int size = 2; size <= n; size <<= 1) {
+                int middle = size >> 1, step = n / size;
+                for (int start = 0; start < n; start += size) {
+                    for (int k = 0, t = 0; k < middle; ++k, t += step) {
+                        double wReal = cos[t], wImag = sign * sin[t];
+                        int a = start + k, b = a + middle;
+                        double tReal = xReal[b] * wReal - xImag[b] * wImag;
+                        double tImag = xReal[b] * wImag + xImag[b] * wReal;
+                        xReal[b] = xReal[a] - tReal;
+                        xImag[b] = xImag[a] - tImag;
+                        xReal[a] += tReal;
+                        xImag[a] += tImag;
+                    }
                 }
-                k += n2;
             }
-            k = 0;
-            --nu1;
-            n2 >>= 1;
         }
 
-        // Second phase - recombination
-        k = 0;
-        int r;
-        while (k < n) {
-            r = bitreverseReference(k, nu);
-            if (r > k) {
-                tReal = xReal[k];
-                tImag = xImag[k];
-                xReal[k] = xReal[r];
-                xImag[k] = xImag[r];
-                xReal[r] = tReal;
-                xImag[r] = tImag;
-            }
-            k++;
+        private void transformDirect(double[] xReal, double[] xImag, double sign) {
+            double[] yReal = new double[n], yImag = new double[n];
+            for (int j = 0; j < n; ++j) {
+                double re = 0, im = 0;
+                for (int k = 0, t = 0; k < n; ++k, t = t + j >= n ? t + j - n : t + j) {
+                    double wReal = cos[t], wImag = sign * sin[t];
+                    re += xReal[k] * wReal - xImag[k] * wImag;
+                    im += xReal[k] * wImag + xImag[k] * wReal;
+                }
+                yReal[j] = re;
+                yImag[j] = im;
+            }
+            System.arraycopy(yReal, 0, xReal, 0, n);
+            System.arraycopy(yImag, 0, xImag, 0, n);
         }
 
-    }
+        // With j k = (j^2 + k^2 - (j - k)^2) / 2, X[j] = c[j] sum_k (x[k] c[k]) conj(c[j - k]), c the chirp for the
+        // direct transform, its conjugate for the inverse one.
+        private void transformBluestein(double[] xReal, double[] xImag, boolean direct) {
+            int m = convolution.n;
+            double sign = direct ? 1 : -1;
+            double[] aReal = new double[m], aImag = new double[m];
+            for (int k = 0; k < n; ++k) {
+                double cReal = chirpReal[k], cImag = sign * chirpImag[k];
+                aReal[k] = xReal[k] * cReal - xImag[k] * cImag;
+                aImag[k] = xReal[k] * cImag + xImag[k] * cReal;
+            }
+            convolution.transform(aReal, aImag, true);
+            double[] bReal = direct ? directReal : inverseReal, bImag = direct ? directImag : inverseImag;
+            for (int k = 0; k < m; ++k) {
+                double re = aReal[k] * bReal[k] - aImag[k] * bImag[k];
+                aImag[k] = aReal[k] * bImag[k] + aImag[k] * bReal[k];
+                aReal[k] = re;
+            }
+            convolution.transform(aReal, aImag, false);
+            for (int j = 0; j < n; ++j) {
+                double cReal = chirpReal[j] / m, cImag = sign * chirpImag[j] / m;
+                xReal[j] = aReal[j] * cReal - aImag[j] * cImag;
+                xImag[j] = aReal[j] * cImag + aImag[j] * cReal;
+            }
+        }
 
-    /**
-     * The reference bitreverse function.
-     */
-    private static int bitreverseReference(int j, int nu) {
-        int j2;
-        int j1 = j;
-        int k = 0;
-        for (int i = 1; i <= nu; ++i) {
-            j2 = j1 >> 1;
-            k = 2 * k + j1 - 2 * j2;
-            j1 = j2;
+        /**
+         * Frequencies j <= n / 2 of the direct transform of the real x, into real[offset + j] and imag[offset + j], the
+         * others being their conjugates. Even lengths run a complex transform of half the length.
+         */
+        public void transformReal(double[] x, double[] real, double[] imag, int offset) {
+            if (x.length != n) {
+                throw new IllegalArgumentException("Transform of length " + n + " given " + x.length + " values.");
+            }
+            if (half == null) {
+                double[] xReal = x.clone(), xImag = new double[n];
+                transform(xReal, xImag, true);
+                System.arraycopy(xReal, 0, real, offset, n / 2 + 1);
+                System.arraycopy(xImag, 0, imag, offset, n / 2 + 1);
+                return;
+            }
+            // Even and odd samples as one complex signal z, whose transform Z gives those of both.
+            int h = n / 2;
+            double[] zReal = new double[h], zImag = new double[h];
+            for (int k = 0; k < h; ++k) {
+                zReal[k] = x[2 * k];
+                zImag[k] = x[2 * k + 1];
+            }
+            half.transform(zReal, zImag, true);
+            for (int j = 0; j <= h; ++j) {
+                int a = j == h ? 0 : j, b = j == 0 ? 0 : h - j;
+                // Even = (Z[j] + conj(Z[h - j])) / 2, odd = (Z[j] - conj(Z[h - j])) / 2i.
+                double evenReal = (zReal[a] + zReal[b]) / 2, evenImag = (zImag[a] - zImag[b]) / 2;
+                double oddReal = (zImag[a] + zImag[b]) / 2, oddImag = -(zReal[a] - zReal[b]) / 2;
+                real[offset + j] = evenReal + halfCos[j] * oddReal - halfSin[j] * oddImag;
+                imag[offset + j] = evenImag + halfCos[j] * oddImag + halfSin[j] * oddReal;
+            }
         }
-        return k;
     }
-}
\ No newline at end of file
+}
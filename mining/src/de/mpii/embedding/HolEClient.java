@@ -3,63 +3,73 @@ package de.mpii.embedding;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
+/**
+ * HolE scores sigmoid(sum_k r[k] c[k]), c being the circular correlation c[k] = sum_i s[i] o[i + k] of the subject and
+ * object embeddings, indices modulo eLength.
+ * <p>
+ * The correlation has spectrum conj(S) O, with S, O the discrete Fourier transforms of s and o, so by Parseval's
+ * identity the sum is (1 / eLength) sum_j Re(conj(R[j] S[j]) O[j]). The spectra of real vectors being conjugate
+ * symmetric, only frequencies j <= eLength / 2 are kept, the others being folded into the weights of the relation
+ * spectra. Spectra of all entities and relations are computed once, each score then costs O(eLength), for any eLength.
+ */
 public class HolEClient extends EmbeddingClient {
     public static final Logger LOGGER = Logger.getLogger(HolEClient.class.getName());
-    // Automatically turn on CACHED_CORREL if nEntities <= this threshold.
-    private static final int CACHED_CORREL_THRESHOLD = 15000;
-    double correl[][][];
-    private boolean CACHED_CORREL = false;
-    private DoubleVector[] entitiesEmbedding, relationsEmbedding;
-    private double[][] fftEntitiesEmbeddingReal, fftEntitiesEmbeddingImag;
-
-    private boolean optimized = false;
+    private EmbeddingMatrix entities, relations;
+    // Number of kept frequencies.
+    private int nFrequencies;
+    // Spectra, frequency j of row i at [i * nFrequencies + j]. Relation spectra are multiplied by the weight of their
+    // frequency, over eLength.
+    private double[] entityReal, entityImag, relationReal, relationImag;
+    private FFTBase.Plan plan;
 
     public HolEClient(String workspace) {
+        this(workspace, false);
+    }
+
+    public HolEClient(String workspace, boolean floatPrecision) {
         super(workspace);
         LOGGER.info("Loading embedding HolE client from '" + workspace + ".");
 
         try {
-            // Read embeddings.
-            DataInputStream eIn = new DataInputStream(new FileInputStream(
-                    new File(workspace + "/hole")));
+            // Read embedding length, then map embeddings.
+            File file = new File(workspace + "/hole");
+            DataInputStream eIn = new DataInputStream(new FileInputStream(file));
             eLength = (int) (eIn.readDouble() + 1e-6);
-            entitiesEmbedding = new DoubleVector[nEntities];
-            for (int i = 0; i < nEntities; ++i) {
-                entitiesEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    entitiesEmbedding[i].value[j] = eIn.readDouble();
-                }
-            }
-            relationsEmbedding = new DoubleVector[nRelations];
-            for (int i = 0; i < nRelations; ++i) {
-                relationsEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    relationsEmbedding[i].value[j] = eIn.readDouble();
-                }
-            }
             eIn.close();
+            EmbeddingMatrix[] tables = EmbeddingMatrix.map(file, Double.BYTES, ByteOrder.BIG_ENDIAN, eLength,
+                    floatPrecision, nEntities, nRelations);
+            entities = tables[0];
+            relations = tables[1];
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        if (CACHED_CORREL) {
-            correl = new double[nEntities][nEntities][];
-            LOGGER.info("Cache Enabled");
-        }
 
-        optimized = ((eLength & (eLength - 1)) == 0 && eLength >= 256) ? optimized = true : false;
-
-        if (optimized) {
-            fftEntitiesEmbeddingReal = new double[nEntities][];
-            fftEntitiesEmbeddingImag = new double[nEntities][eLength];
-            for (int i = 0; i < nEntities; ++i) {
-                fftEntitiesEmbeddingReal[i] = Arrays.copyOf(entitiesEmbedding[i].value, eLength);
-                FFTBase.fft(fftEntitiesEmbeddingReal[i], fftEntitiesEmbeddingImag[i], true);
+        nFrequencies = eLength / 2 + 1;
+        plan = FFTBase.getPlan(eLength);
+        entityReal = new double[nEntities * nFrequencies];
+        entityImag = new double[nEntities * nFrequencies];
+        relationReal = new double[nRelations * nFrequencies];
+        relationImag = new double[nRelations * nFrequencies];
+        double[] x = new double[eLength];
+        for (int i = 0; i < nEntities; ++i) {
+            entities.getRow(i, x);
+            transform(x, entityReal, entityImag, i * nFrequencies);
+        }
+        for (int i = 0; i < nRelations; ++i) {
+            relations.getRow(i, x);
+            transform(x, relationReal, relationImag, i * nFrequencies);
+            for (int j = 0; j < nFrequencies; ++j) {
+                // Frequencies j and eLength - j are the same, except 0 and eLength / 2.
+                double weight = (j == 0 || 2 * j == eLength ? 1.0 : 2.0) / eLength;
+                relationReal[i * nFrequencies + j] *= weight;
+                relationImag[i * nFrequencies + j] *= weight;
             }
-            LOGGER.info("FFT Optimization Enabled");
         }
+        LOGGER.info("Spectra of embeddings computed.");
     }
 
     public static double[] getCircularCorrelation(double[] s, double[] o) {
@@ -110,43 +120,148 @@ public class HolEClient extends EmbeddingClient {
         }
     }
 
-    public double[] getCircularCorrelation_log_optimized(int subject, int object) {
-        double[] real = new double[eLength], imag = new double[eLength];
-        for (int i = 0; i < eLength; ++i) {
-            real[i] = fftEntitiesEmbeddingReal[subject][i] * fftEntitiesEmbeddingReal[object][i] +
-                    fftEntitiesEmbeddingImag[subject][i] * fftEntitiesEmbeddingImag[object][i];
-            imag[i] = fftEntitiesEmbeddingReal[subject][i] * fftEntitiesEmbeddingImag[object][i] -
-                    fftEntitiesEmbeddingImag[subject][i] * fftEntitiesEmbeddingReal[object][i];
-        }
-        FFTBase.fft(real, imag, false);
-        for (int i = 0; i < eLength; ++i) {
-            real[i] /= eLength;
+    // Frequencies j < nFrequencies of the discrete Fourier transform sum_n x[n] exp(-2 pi i j n / eLength), into
+    // real[offset + j] and imag[offset + j]. The direct transform of FFTBase has exponent +2 pi i j n / eLength, its
+    // conjugate is kept.
+    private void transform(double[] x, double[] real, double[] imag, int offset) {
+        plan.transformReal(x, real, imag, offset);
+        for (int j = 0; j < nFrequencies; ++j) {
+            imag[offset + j] = -imag[offset + j];
         }
+    }
 
-        return real;
+    // The vector w of sum_n w[n] x[n] = sum_j Re(conj(A[j]) X[j]), with X the kept frequencies of the transform of x:
+    // w[n] = Re(sum_j conj(A[j]) exp(-2 pi i j n / eLength)), the inverse transform of FFTBase.
+    private double[] toQueryVector(double[] aReal, double[] aImag) {
+        double[] w = new double[eLength], imag = new double[eLength];
+        for (int j = 0; j < nFrequencies; ++j) {
+            w[j] = aReal[j];
+            imag[j] = -aImag[j];
+        }
+        plan.transform(w, imag, false);
+        return w;
     }
 
     @Override
     public double getScore(int subject, int predicate, int object) {
-        if (CACHED_CORREL) {
-            if (correl[subject][object] == null) {
-                correl[subject][object] = optimized ? getCircularCorrelation_log_optimized(subject, object) :
-                        getCircularCorrelation(entitiesEmbedding[subject].value, entitiesEmbedding[object].value);
+        int s = subject * nFrequencies, r = predicate * nFrequencies, o = object * nFrequencies;
+        double result = 0;
+        for (int j = 0; j < nFrequencies; ++j) {
+            // A = R S, the score is sum_j Re(conj(A) O).
+            double aReal = relationReal[r + j] * entityReal[s + j] - relationImag[r + j] * entityImag[s + j];
+            double aImag = relationReal[r + j] * entityImag[s + j] + relationImag[r + j] * entityReal[s + j];
+            result += aReal * entityReal[o + j] + aImag * entityImag[o + j];
+        }
+        return 1.0 / (1 + Math.exp(-result));
+    }
+
+    // Scores of (s, p, ?) are the sigmoid of the dot product of the candidate with the vector w of A = R S, and
+    // those of (?, p, o) with the vector w of A = conj(R) O, since Re(conj(R S) O) = Re(conj(S) conj(R) O). Computing
+    // w once makes each candidate O(eLength), the scores differ from getScore by rounding only.
+    @Override
+    protected EmbeddingMatrix[] getCandidateTables() {
+        return new EmbeddingMatrix[]{entities};
+    }
+
+    @Override
+    protected ScoreQuery getTailQuery(int subject, int predicate) {
+        int s = subject * nFrequencies, r = predicate * nFrequencies;
+        double[] aReal = new double[nFrequencies], aImag = new double[nFrequencies];
+        for (int j = 0; j < nFrequencies; ++j) {
+            aReal[j] = relationReal[r + j] * entityReal[s + j] - relationImag[r + j] * entityImag[s + j];
+            aImag[j] = relationReal[r + j] * entityImag[s + j] + relationImag[r + j] * entityReal[s + j];
+        }
+        return new ScoreQuery(subject, predicate, toQueryVector(aReal, aImag));
+    }
+
+    @Override
+    protected ScoreQuery getHeadQuery(int object, int predicate) {
+        int o = object * nFrequencies, r = predicate * nFrequencies;
+        double[] aReal = new double[nFrequencies], aImag = new double[nFrequencies];
+        for (int j = 0; j < nFrequencies; ++j) {
+            aReal[j] = relationReal[r + j] * entityReal[o + j] + relationImag[r + j] * entityImag[o + j];
+            aImag[j] = relationReal[r + j] * entityImag[o + j] - relationImag[r + j] * entityReal[o + j];
+        }
+        return new ScoreQuery(object, predicate, toQueryVector(aReal, aImag));
+    }
+
+    @Override
+    protected void getTailScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        dotCandidates(query.vectors[0], candidates, scores);
+    }
+
+    @Override
+    protected void getHeadScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        dotCandidates(query.vectors[0], candidates, scores);
+    }
+
+    // Sigmoid of the dot products of w with the candidates.
+    private void dotCandidates(double[] w, CandidateBlock candidates, double[] scores) {
+        int n = candidates.to - candidates.from;
+        Arrays.fill(scores, 0, n, 0);
+        for (int i = 0; i < eLength; ++i) {
+            double wi = w[i];
+            double[] column = candidates.columns[0][i];
+            for (int e = 0; e < n; ++e) {
+                scores[e] += wi * column[e];
             }
-            double result = 0;
-            for (int i = 0; i < eLength; ++i) {
-                result += correl[subject][object][i] * relationsEmbedding[predicate].value[i];
+        }
+        for (int e = 0; e < n; ++e) {
+            scores[e] = 1.0 / (1 + Math.exp(-scores[e]));
+        }
+    }
+
+    @Override
+    protected EntityIndex.Metric getIndexMetric() {
+        return EntityIndex.Metric.L2;
+    }
+
+    @Override
+    protected EntityIndex.Query getTailIndexQuery(ScoreQuery query) {
+        return new DotQuery(query.vectors[0]);
+    }
+
+    @Override
+    protected EntityIndex.Query getHeadIndexQuery(ScoreQuery query) {
+        return new DotQuery(query.vectors[0]);
+    }
+
+    // Sigmoid of the dot product with w. Dot products within the L2 radius of the pivot differ from its own by at most
+    // the radius times the norm of w.
+    private static class DotQuery implements EntityIndex.Query {
+        private double[] w;
+        private double norm;
+
+        DotQuery(double[] w) {
+            this.w = w;
+            for (double x : w) {
+                norm += x * x;
             }
-            return 1.0 / (1 + Math.exp(-result));
-
-        } else {
-            double[] r = optimized ? getCircularCorrelation_log_optimized(subject, object) :
-                    getCircularCorrelation(entitiesEmbedding[subject].value, entitiesEmbedding[object].value);
-            double result = 0;
-            for (int k = 0; k < eLength; ++k) {
-                result += r[k] * relationsEmbedding[predicate].value[k];
+            norm = Math.sqrt(norm);
+        }
+
+        @Override
+        public double getCenter(double[] points, int position) {
+            double dot = 0;
+            for (int i = 0, p = position * w.length; i < w.length; ++i, ++p) {
+                dot += w[i] * points[p];
             }
-            return 1.0 / (1 + Math.exp(-result));
+            return dot;
+        }
+
+        @Override
+        public double getLowerBound(double center, double radius) {
+            return 1.0 / (1 + Math.exp(-(center - norm * radius)));
+        }
+
+        @Override
+        public double getUpperBound(double center, double radius) {
+            return 1.0 / (1 + Math.exp(-(center + norm * radius)));
+        }
+
+        @Override
+        public double getScore(double[] points, int position) {
+            return 1.0 / (1 + Math.exp(-getCenter(points, position)));
         }
     }
 }
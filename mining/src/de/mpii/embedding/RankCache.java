@@ -0,0 +1,297 @@
+package de.mpii.embedding;
+
+import de.mpii.util.AtomicFile;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Inverted ranks of facts within a memory budget, shared by all predicates.
+ * <p>
+ * Facts are hashed to sets of WAYS slots, each set guarded by one of a fixed number of locks. A fact missing from a
+ * full set replaces the least recently used fact of the set only if it is requested at least as often (TinyLFU
+ * admission): request frequencies are estimated by a count-min sketch of 4-bit counters, halved periodically so that
+ * old requests fade. Facts requested once thus do not evict facts reused by many rules.
+ * <p>
+ * The cache can be saved and loaded back by a later run, checked against a checksum of the embedding.
+ */
+public class RankCache {
+    public static final Logger LOGGER = Logger.getLogger(RankCache.class.getName());
+
+    private static final int MAGIC = 0x52414e4b;
+    private static final int VERSION = 1;
+    private static final int WAYS = 8;
+    private static final int LOCKS = 64;
+    // Key, value and access time of a slot, and the sketch counters of a slot.
+    private static final int ENTRY_BYTES = 3 * Long.BYTES + 2;
+    private static final long EMPTY = -1;
+
+    private final int nEntities;
+    private final int nSets;
+    private final long[] keys, stamps;
+    private final double[] values;
+    private final Object[] locks;
+    // Access time of each lock, increasing on each access to its sets.
+    private final long[] clocks;
+
+    // Count-min sketch: 4 rows of counters, 16 counters of 4 bits per long.
+    private final AtomicLongArray sketch;
+    private final int rowMask;
+    private final AtomicInteger nRequests = new AtomicInteger();
+    private final int resetInterval;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder(), rejections =
+            new LongAdder();
+
+    // Cache of at most memory bytes of the ranks of facts over nEntities entities.
+    public RankCache(int nEntities, long memory) {
+        this.nEntities = nEntities;
+        int capacity = getCapacity(memory);
+        nSets = capacity / WAYS;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        stamps = new long[capacity];
+        values = new double[capacity];
+        locks = new Object[LOCKS];
+        for (int i = 0; i < LOCKS; ++i) {
+            locks[i] = new Object();
+        }
+        clocks = new long[LOCKS];
+        int rowWidth = Math.max(16, capacity);
+        rowMask = rowWidth - 1;
+        sketch = new AtomicLongArray(4 * rowWidth / 16);
+        resetInterval = (int) Math.min(Integer.MAX_VALUE / 2, 10L * capacity);
+    }
+
+    // Number of facts cached within memory bytes.
+    public static int getCapacity(long memory) {
+        return Math.max(1, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / WAYS, memory / ENTRY_BYTES /
+                WAYS))) * WAYS;
+    }
+
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // Facts not admitted to a full set.
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            synchronized (locks[(i / WAYS) & (LOCKS - 1)]) {
+                size += keys[i] == EMPTY ? 0 : 1;
+            }
+        }
+        return size;
+    }
+
+    public long getKey(int predicate, int subject, int object) {
+        return ((long) predicate * nEntities + subject) * nEntities + object;
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    // NaN if the fact is not cached.
+    public double get(int predicate, int subject, int object) {
+        long key = getKey(predicate, subject, object), hash = mix(key);
+        increment(hash);
+        int set = (int) hash & (nSets - 1), lock = set & (LOCKS - 1);
+        synchronized (locks[lock]) {
+            for (int i = set * WAYS; i < (set + 1) * WAYS; ++i) {
+                if (keys[i] == key) {
+                    stamps[i] = ++clocks[lock];
+                    hits.increment();
+                    return values[i];
+                }
+            }
+        }
+        misses.increment();
+        return Double.NaN;
+    }
+
+    // Same as get, without counting the request.
+    public double peek(int predicate, int subject, int object) {
+        long key = getKey(predicate, subject, object);
+        int set = (int) mix(key) & (nSets - 1);
+        synchronized (locks[set & (LOCKS - 1)]) {
+            for (int i = set * WAYS; i < (set + 1) * WAYS; ++i) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    public void put(int predicate, int subject, int object, double value) {
+        put(getKey(predicate, subject, object), value);
+    }
+
+    private void put(long key, double value) {
+        long hash = mix(key);
+        int set = (int) hash & (nSets - 1), lock = set & (LOCKS - 1);
+        synchronized (locks[lock]) {
+            int victim = -1;
+            for (int i = set * WAYS; i < (set + 1) * WAYS; ++i) {
+                if (keys[i] == key || keys[i] == EMPTY) {
+                    keys[i] = key;
+                    values[i] = value;
+                    stamps[i] = ++clocks[lock];
+                    return;
+                }
+                if (victim == -1 || stamps[i] < stamps[victim]) {
+                    victim = i;
+                }
+            }
+            if (getFrequency(hash) < getFrequency(mix(keys[victim]))) {
+                rejections.increment();
+                return;
+            }
+            keys[victim] = key;
+            values[victim] = value;
+            stamps[victim] = ++clocks[lock];
+            evictions.increment();
+        }
+    }
+
+    // Index of the counter of hash in the given row of the sketch.
+    private int getIndex(long hash, int row) {
+        int h = (int) (mix(hash + row) >>> 20) & rowMask;
+        return row * (rowMask + 1) + h;
+    }
+
+    private void increment(long hash) {
+        for (int row = 0; row < 4; ++row) {
+            int index = getIndex(hash, row), word = index >>> 4, shift = (index & 15) << 2;
+            while (true) {
+                long current = sketch.get(word);
+                if (((current >>> shift) & 15) == 15 || sketch.compareAndSet(word, current, current + (1L << shift))) {
+                    break;
+                }
+            }
+        }
+        if (nRequests.incrementAndGet() == resetInterval) {
+            nRequests.set(0);
+            halve();
+        }
+    }
+
+    private int getFrequency(long hash) {
+        int frequency = 15;
+        for (int row = 0; row < 4; ++row) {
+            int index = getIndex(hash, row);
+            frequency = Math.min(frequency, (int) (sketch.get(index >>> 4) >>> ((index & 15) << 2)) & 15);
+        }
+        return frequency;
+    }
+
+    private void halve() {
+        for (int word = 0; word < sketch.length(); ++word) {
+            while (true) {
+                long current = sketch.get(word);
+                if (sketch.compareAndSet(word, current, (current >>> 1) & 0x7777777777777777L)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Cached ranks of a file saved with the given checksum of the embedding, none if the checksum differs.
+    public void load(File file, long checksum) {
+        if (!file.exists()) {
+            return;
+        }
+        int n = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != checksum || in.readInt() !=
+                        nEntities) {
+                    LOGGER.warning("Rank cache " + file.getPath() + " is of another embedding, ignored.");
+                    return;
+                }
+                for (int size = in.readInt(); n < size; ++n) {
+                    long key = in.readLong();
+                    double value = in.readDouble();
+                    increment(mix(key));
+                    put(key, value);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Cannot read rank cache: " + e.getMessage());
+        }
+        LOGGER.info("Loaded " + n + " cached ranks from " + file.getPath() + ".");
+    }
+
+    public void save(File file, long checksum) throws IOException {
+        long[] savedKeys = new long[keys.length];
+        double[] savedValues = new double[keys.length];
+        int n = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            synchronized (locks[(i / WAYS) & (LOCKS - 1)]) {
+                if (keys[i] != EMPTY) {
+                    savedKeys[n] = keys[i];
+                    savedValues[n++] = values[i];
+                }
+            }
+        }
+        final int nSaved = n;
+        AtomicFile.write(file, out -> {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum);
+            out.writeInt(nEntities);
+            out.writeInt(nSaved);
+            for (int i = 0; i < nSaved; ++i) {
+                out.writeLong(savedKeys[i]);
+                out.writeDouble(savedValues[i]);
+            }
+        });
+    }
+
+    // Entries of other, into this cache.
+    public void addAll(RankCache other) {
+        for (int i = 0; i < other.keys.length; ++i) {
+            long key;
+            double value;
+            synchronized (other.locks[(i / WAYS) & (LOCKS - 1)]) {
+                key = other.keys[i];
+                value = other.values[i];
+            }
+            if (key != EMPTY) {
+                increment(mix(key));
+                put(key, value);
+            }
+        }
+    }
+
+    public String getStatistics() {
+        return "Rank cache hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions() + ", " +
+                "rejections: " + getRejections() + ", size: " + getSize() + "/" + getCapacity() + ".";
+    }
+}
@@ -5,45 +5,35 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class SSPClient extends EmbeddingClient {
     public static final Logger LOGGER = Logger.getLogger(SSPClient.class.getName());
     double balance;
-    private DoubleVector[] entitiesEmbedding, relationsEmbedding, semantic;
+    private EmbeddingMatrix entities, relations, semantic;
 
     public SSPClient(String workspace) {
+        this(workspace, false);
+    }
+
+    public SSPClient(String workspace, boolean floatPrecision) {
         super(workspace);
         LOGGER.info("Loading embedding SSP client from '" + workspace + ".");
 
         try {
-            // Read embeddings.
-            DataInputStream eIn = new DataInputStream(new FileInputStream(
-                    new File(workspace + "/ssp")));
+            // Read embedding length and balance, then map embeddings.
+            File file = new File(workspace + "/ssp");
+            DataInputStream eIn = new DataInputStream(new FileInputStream(file));
             eLength = (int) (readDouble(eIn) + 1e-6);
             balance = readDouble(eIn);
-            entitiesEmbedding = new DoubleVector[nEntities];
-            for (int i = 0; i < nEntities; ++i) {
-                entitiesEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    entitiesEmbedding[i].value[j] = readDouble(eIn);
-                }
-            }
-            relationsEmbedding = new DoubleVector[nRelations];
-            for (int i = 0; i < nRelations; ++i) {
-                relationsEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    relationsEmbedding[i].value[j] = readDouble(eIn);
-                }
-            }
-            semantic = new DoubleVector[nEntities];
-            for (int i = 0; i < nEntities; ++i) {
-                semantic[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    semantic[i].value[j] = readDouble(eIn);
-                }
-            }
             eIn.close();
+            EmbeddingMatrix[] tables = EmbeddingMatrix.map(file, 2 * Double.BYTES, ByteOrder.LITTLE_ENDIAN, eLength,
+                    floatPrecision, nEntities, nRelations, nEntities);
+            entities = tables[0];
+            relations = tables[1];
+            semantic = tables[2];
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -55,7 +45,7 @@ public class SSPClient extends EmbeddingClient {
 
     double readDouble(DataInputStream in) throws IOException {
         byte[] b = new byte[8];
-        in.read(b, 0, 8);
+        in.readFully(b);
         for (int i = 0; i < 4; ++i) {
             byte x = b[i];
             b[i] = b[7 - i];
@@ -66,14 +56,12 @@ public class SSPClient extends EmbeddingClient {
 
     @Override
     public double getScore(int subject, int predicate, int object) {
-        double[] sem = new double[eLength];
-        double[] err = new double[eLength];
+        double[] sem = new double[eLength], err = new double[eLength];
         double sum = 0;
         for (int i = 0; i < eLength; ++i) {
-            sem[i] = semantic[subject].value[i] + semantic[object].value[i];
+            sem[i] = semantic.get(subject, i) + semantic.get(object, i);
             sum += Math.abs(sem[i]);
-            err[i] = entitiesEmbedding[subject].value[i] + relationsEmbedding[predicate].value[i] -
-                    entitiesEmbedding[object].value[i];
+            err[i] = entities.get(subject, i) + relations.get(predicate, i) - entities.get(object, i);
         }
         sum = Math.max(sum, 1e-5);
         double ste = 0;
@@ -89,4 +77,195 @@ public class SSPClient extends EmbeddingClient {
 
         return -balance * first - second;
     }
+
+    @Override
+    protected EmbeddingMatrix[] getCandidateTables() {
+        return new EmbeddingMatrix[]{entities, semantic};
+    }
+
+    @Override
+    protected ScoreQuery getTailQuery(int subject, int predicate) {
+        double[] semS = new double[eLength], t = new double[eLength];
+        semantic.getRow(subject, semS);
+        for (int i = 0; i < eLength; ++i) {
+            t[i] = entities.get(subject, i) + relations.get(predicate, i);
+        }
+        return new SSPQuery(subject, predicate, semS, t);
+    }
+
+    @Override
+    protected ScoreQuery getHeadQuery(int object, int predicate) {
+        double[] semO = new double[eLength], r = new double[eLength], o = new double[eLength];
+        semantic.getRow(object, semO);
+        relations.getRow(predicate, r);
+        entities.getRow(object, o);
+        return new SSPQuery(object, predicate, semO, r, o);
+    }
+
+    // The three passes of getScore run over all candidates at a time, one dimension after the other, recomputing the
+    // same sem and err values.
+    //
+    // As balance and first are not negative, a score is at most -second. Candidates whose second alone puts them not
+    // above the threshold are thus skipped: their second is computed first, and the others are copied to a smaller
+    // block for the three passes. Since that costs about one more pass, a query keeps doing it only if at least half
+    // of the candidates of its first block were skipped.
+    @Override
+    protected void getTailScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        double[] semS = query.vectors[0], t = query.vectors[1];
+        int n = candidates.to - candidates.from;
+        SSPQuery sspQuery = (SSPQuery) query;
+        if (balance < 0 || threshold == Double.NEGATIVE_INFINITY || sspQuery.selective == Boolean.FALSE) {
+            scoreTails(semS, t, candidates, null, scores);
+            return;
+        }
+        double[] second = new double[n];
+        for (int i = 0; i < eLength; ++i) {
+            double ti = t[i];
+            double[] o = candidates.columns[0][i];
+            for (int e = 0; e < n; ++e) {
+                second[e] += Math.abs(ti - o[e]);
+            }
+        }
+        int[] selected = new int[n];
+        int m = select(second, n, threshold, selected, scores);
+        if (!sspQuery.isSelective(m, n)) {
+            scoreTails(semS, t, candidates, null, scores);
+            return;
+        }
+        scoreTails(semS, t, candidates.select(selected, m), selected, scores);
+    }
+
+    @Override
+    protected void getHeadScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        double[] semO = query.vectors[0], r = query.vectors[1], o = query.vectors[2];
+        int n = candidates.to - candidates.from;
+        SSPQuery sspQuery = (SSPQuery) query;
+        if (balance < 0 || threshold == Double.NEGATIVE_INFINITY || sspQuery.selective == Boolean.FALSE) {
+            scoreHeads(semO, r, o, candidates, null, scores);
+            return;
+        }
+        double[] second = new double[n];
+        for (int i = 0; i < eLength; ++i) {
+            double ri = r[i], oi = o[i];
+            double[] s = candidates.columns[0][i];
+            for (int e = 0; e < n; ++e) {
+                second[e] += Math.abs(s[e] + ri - oi);
+            }
+        }
+        int[] selected = new int[n];
+        int m = select(second, n, threshold, selected, scores);
+        if (!sspQuery.isSelective(m, n)) {
+            scoreHeads(semO, r, o, candidates, null, scores);
+            return;
+        }
+        scoreHeads(semO, r, o, candidates.select(selected, m), selected, scores);
+    }
+
+    // Query remembering whether skipping candidates from their second is worth it, decided on its first block.
+    private static class SSPQuery extends ScoreQuery {
+        Boolean selective;
+
+        SSPQuery(int entity, int predicate, double[]... vectors) {
+            super(entity, predicate, vectors);
+        }
+
+        boolean isSelective(int selected, int n) {
+            if (selective == null) {
+                selective = selected * 2 <= n;
+            }
+            return selective;
+        }
+    }
+
+    // Indices of the candidates whose score may be above threshold into selected, returning their number. The scores
+    // of the others are set to -second.
+    private static int select(double[] second, int n, double threshold, int[] selected, double[] scores) {
+        int m = 0;
+        for (int e = 0; e < n; ++e) {
+            if (-second[e] > threshold) {
+                selected[m++] = e;
+            } else {
+                scores[e] = -second[e];
+            }
+        }
+        return m;
+    }
+
+    // Scores of the candidates k of block into scores[selected[k]], or into scores[k] if selected is null.
+    private void scoreTails(double[] semS, double[] t, CandidateBlock block, int[] selected, double[] scores) {
+        int m = block.to - block.from;
+        double[] sum = new double[m], ste = new double[m], first = new double[m], second = new double[m];
+        for (int i = 0; i < eLength; ++i) {
+            double semSi = semS[i];
+            double[] semO = block.columns[1][i];
+            for (int e = 0; e < m; ++e) {
+                sum[e] += Math.abs(semSi + semO[e]);
+            }
+        }
+        for (int e = 0; e < m; ++e) {
+            sum[e] = Math.max(sum[e], 1e-5);
+        }
+        for (int i = 0; i < eLength; ++i) {
+            double semSi = semS[i], ti = t[i];
+            double[] semO = block.columns[1][i], o = block.columns[0][i];
+            for (int e = 0; e < m; ++e) {
+                ste[e] += (semSi + semO[e]) / sum[e] * (ti - o[e]);
+            }
+        }
+        for (int i = 0; i < eLength; ++i) {
+            double semSi = semS[i], ti = t[i];
+            double[] semO = block.columns[1][i], o = block.columns[0][i];
+            for (int e = 0; e < m; ++e) {
+                double err = ti - o[e];
+                first[e] += Math.abs(err - ste[e] * ((semSi + semO[e]) / sum[e]));
+                second[e] += Math.abs(err);
+            }
+        }
+        setScores(first, second, m, selected, scores);
+    }
+
+    private void scoreHeads(double[] semO, double[] r, double[] o, CandidateBlock block, int[] selected, double[]
+            scores) {
+        int m = block.to - block.from;
+        double[] sum = new double[m], ste = new double[m], first = new double[m], second = new double[m];
+        for (int i = 0; i < eLength; ++i) {
+            double semOi = semO[i];
+            double[] semS = block.columns[1][i];
+            for (int e = 0; e < m; ++e) {
+                sum[e] += Math.abs(semS[e] + semOi);
+            }
+        }
+        for (int e = 0; e < m; ++e) {
+            sum[e] = Math.max(sum[e], 1e-5);
+        }
+        for (int i = 0; i < eLength; ++i) {
+            double semOi = semO[i], ri = r[i], oi = o[i];
+            double[] semS = block.columns[1][i], s = block.columns[0][i];
+            for (int e = 0; e < m; ++e) {
+                ste[e] += (semS[e] + semOi) / sum[e] * (s[e] + ri - oi);
+            }
+        }
+        for (int i = 0; i < eLength; ++i) {
+            double semOi = semO[i], ri = r[i], oi = o[i];
+            double[] semS = block.columns[1][i], s = block.columns[0][i];
+            for (int e = 0; e < m; ++e) {
+                double err = s[e] + ri - oi;
+                first[e] += Math.abs(err - ste[e] * ((semS[e] + semOi) / sum[e]));
+                second[e] += Math.abs(err);
+            }
+        }
+        setScores(first, second, m, selected, scores);
+    }
+
+    private void setScores(double[] first, double[] second, int m, int[] selected, double[] scores) {
+        if (selected == null) {
+            for (int e = 0; e < m; ++e) {
+                scores[e] = -balance * first[e] - second[e];
+            }
+            return;
+        }
+        for (int k = 0; k < m; ++k) {
+            scores[selected[k]] = -balance * first[k] - second[k];
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package de.mpii.embedding;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sorted scores of the candidates of (entity, predicate, ?) or (?, predicate, entity), so that the ranks of later facts
+ * on that side are binary searches instead of passes over all entities. Profiles are kept within a memory budget, the
+ * least recently used ones being evicted first.
+ * <p>
+ * Ranks are capped, so a profile only keeps the scores which can still give a rank under the cap. A side only gets a
+ * profile once requested a few times while recent, from the scores of all candidates computed by the pass of that
+ * request: most sides are requested once, and would not pay for the sort.
+ */
+public class ScoreProfileCache {
+    // Sides without a profile whose recent requests are counted.
+    private static final int RECENT_SIDES = 1 << 15;
+    // Requests of a recent side from which its profile is built.
+    private static final int BUILD_REQUESTS = 3;
+    // Memory of a profile besides its scores.
+    private static final int PROFILE_BYTES = 64;
+
+    // Profile of a side, immutable once built.
+    public static class Profile {
+        // Highest scores, ascending, and whether they are all the scores.
+        private final double[] scores;
+        private final boolean complete;
+        // Score of the entity of the side as a candidate, and ascending scores of the known candidates other than it.
+        private final double entityScore;
+        private final double[] knownScores;
+
+        private Profile(double[] scores, boolean complete, double entityScore, double[] knownScores) {
+            this.scores = scores;
+            this.complete = complete;
+            this.entityScore = entityScore;
+            this.knownScores = knownScores;
+        }
+
+        // Profile of the scores of all candidates of a side of entity with its known candidates, for ranks up to
+        // limit. All but the highest limit + known.length + 1 scores are dropped: if all of them are above a threshold,
+        // the entity and the known candidates leave at least limit others.
+        public static Profile build(double[] scores, int entity, int[] known, int limit) {
+            // NaN scores are never above a threshold.
+            double[] knownScores = new double[known.length];
+            int m = 0;
+            for (int e : known) {
+                if (e != entity && !Double.isNaN(scores[e])) {
+                    knownScores[m++] = scores[e];
+                }
+            }
+            knownScores = Arrays.copyOf(knownScores, m);
+            Arrays.sort(knownScores);
+            double[] kept = new double[scores.length];
+            int n = 0;
+            for (double s : scores) {
+                if (!Double.isNaN(s)) {
+                    kept[n++] = s;
+                }
+            }
+            int size = Math.min(n, limit + known.length + 1);
+            if (size < n) {
+                select(kept, n, n - size);
+            }
+            kept = Arrays.copyOfRange(kept, n - size, n);
+            Arrays.sort(kept);
+            return new Profile(kept, size == n, scores[entity], knownScores);
+        }
+
+        // Reorders values[0, n) so that values[k] is the k-th smallest, with smaller values before it and larger ones
+        // after.
+        private static void select(double[] values, int n, int k) {
+            int from = 0, to = n - 1;
+            while (from < to) {
+                double pivot = median(values[from], values[(from + to) >>> 1], values[to]);
+                int i = from, j = to;
+                while (i <= j) {
+                    while (values[i] < pivot) {
+                        ++i;
+                    }
+                    while (values[j] > pivot) {
+                        --j;
+                    }
+                    if (i <= j) {
+                        double x = values[i];
+                        values[i++] = values[j];
+                        values[j--] = x;
+                    }
+                }
+                if (k <= j) {
+                    to = j;
+                } else if (k >= i) {
+                    from = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static double median(double a, double b, double c) {
+            return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        }
+
+        // Rank, capped at the limit the profile was built for, of a fact of the side with threshold t, the same as a
+        // pass over all candidates excluding the entity and the known candidates. The other entity of the fact scores
+        // below t by the margin of the threshold, and is never counted.
+        public int getRank(double t, int limit) {
+            if (!complete && (scores.length == 0 || t < scores[0])) {
+                return limit;
+            }
+            int count = countAbove(scores, t) - (entityScore > t ? 1 : 0) - countAbove(knownScores, t);
+            return Math.min(1 + count, limit);
+        }
+
+        private static int countAbove(double[] sorted, double t) {
+            int from = 0, to = sorted.length;
+            while (from < to) {
+                int middle = (from + to) >>> 1;
+                if (sorted[middle] > t) {
+                    to = middle;
+                } else {
+                    from = middle + 1;
+                }
+            }
+            return sorted.length - from;
+        }
+
+        long getBytes() {
+            return PROFILE_BYTES + (long) Double.BYTES * (scores.length + knownScores.length);
+        }
+    }
+
+    private long memory, bytes;
+    private final LinkedHashMap<Long, Profile> profiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Integer> recent = new LinkedHashMap<Long, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > RECENT_SIDES;
+        }
+    };
+    private final LongAdder hits = new LongAdder(), builds = new LongAdder(), evictions = new LongAdder();
+
+    public ScoreProfileCache(long memory) {
+        this.memory = memory;
+    }
+
+    // Key of the side of entity: tail for (entity, predicate, ?), head for (?, predicate, entity).
+    public static long getKey(int predicate, int entity, boolean tail, int nEntities) {
+        return ((long) predicate * nEntities + entity) * 2 + (tail ? 0 : 1);
+    }
+
+    // Profile of the side, null if none.
+    public synchronized Profile get(long key) {
+        Profile profile = profiles.get(key);
+        if (profile != null) {
+            hits.increment();
+        }
+        return profile;
+    }
+
+    // Records a request of a side without a profile, returns whether it was recently requested often enough that its
+    // profile should be built.
+    public synchronized boolean isRequestedOften(long key) {
+        if (memory <= 0) {
+            return false;
+        }
+        Integer requests = recent.get(key);
+        int n = requests == null ? 1 : requests + 1;
+        if (n >= BUILD_REQUESTS) {
+            recent.remove(key);
+            return true;
+        }
+        recent.put(key, n);
+        return false;
+    }
+
+    public synchronized void put(long key, Profile profile) {
+        Profile previous = profiles.put(key, profile);
+        if (previous != null) {
+            bytes -= previous.getBytes();
+        }
+        bytes += profile.getBytes();
+        builds.increment();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Profile> it = profiles.values().iterator();
+        while (bytes > memory && it.hasNext()) {
+            bytes -= it.next().getBytes();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized long getMemory() {
+        return memory;
+    }
+
+    public synchronized void setMemory(long memory) {
+        this.memory = memory;
+        evict();
+    }
+
+    // Requests of sides with a profile.
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getBuilds() {
+        return builds.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized String getStatistics() {
+        return "Score profile hits: " + getHits() + ", builds: " + getBuilds() + ", evictions: " + getEvictions() +
+                ", size: " + profiles.size() + " (" + (bytes >> 20) + "MB).";
+    }
+}
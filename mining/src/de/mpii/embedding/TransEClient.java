@@ -3,6 +3,8 @@ package de.mpii.embedding;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -13,9 +15,13 @@ import java.util.logging.Logger;
 public class TransEClient extends EmbeddingClient {
     public static final Logger LOGGER = Logger.getLogger(TransEClient.class.getName());
     private String norm;
-    private DoubleVector[] entitiesEmbedding, relationsEmbedding;
+    private EmbeddingMatrix entities, relations;
 
     public TransEClient(String workspace, String norm) {
+        this(workspace, norm, false);
+    }
+
+    public TransEClient(String workspace, String norm, boolean floatPrecision) {
         super(workspace);
         LOGGER.info("Loading embedding TransE client from '" + workspace + "' with norm " + norm + ".");
         this.norm = norm;
@@ -23,25 +29,15 @@ public class TransEClient extends EmbeddingClient {
             throw new RuntimeException("Support L1 norm only.");
         }
         try {
-            // Read embeddings.
-            DataInputStream eIn = new DataInputStream(new FileInputStream(
-                    new File(workspace + "/transe")));
+            // Read embedding length, then map embeddings.
+            File file = new File(workspace + "/transe");
+            DataInputStream eIn = new DataInputStream(new FileInputStream(file));
             eLength = (int) (eIn.readDouble() + 1e-6);
-            entitiesEmbedding = new DoubleVector[nEntities];
-            for (int i = 0; i < nEntities; ++i) {
-                entitiesEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    entitiesEmbedding[i].value[j] = eIn.readDouble();
-                }
-            }
-            relationsEmbedding = new DoubleVector[nRelations];
-            for (int i = 0; i < nRelations; ++i) {
-                relationsEmbedding[i] = new DoubleVector(eLength);
-                for (int j = 0; j < eLength; ++j) {
-                    relationsEmbedding[i].value[j] = eIn.readDouble();
-                }
-            }
             eIn.close();
+            EmbeddingMatrix[] tables = EmbeddingMatrix.map(file, Double.BYTES, ByteOrder.BIG_ENDIAN, eLength,
+                    floatPrecision, nEntities, nRelations);
+            entities = tables[0];
+            relations = tables[1];
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -55,9 +51,119 @@ public class TransEClient extends EmbeddingClient {
     public double getScore(int subject, int predicate, int object) {
         double score = 0;
         for (int i = 0; i < eLength; ++i) {
-            score += Math.abs(entitiesEmbedding[subject].value[i] + relationsEmbedding[predicate].value[i] -
-                    entitiesEmbedding[object].value[i]);
+            score += Math.abs(entities.get(subject, i) + relations.get(predicate, i) - entities.get(object, i));
         }
         return -score;
     }
+
+    @Override
+    protected EmbeddingMatrix[] getCandidateTables() {
+        return new EmbeddingMatrix[]{entities};
+    }
+
+    @Override
+    protected ScoreQuery getTailQuery(int subject, int predicate) {
+        double[] t = new double[eLength];
+        for (int i = 0; i < eLength; ++i) {
+            t[i] = entities.get(subject, i) + relations.get(predicate, i);
+        }
+        return new ScoreQuery(subject, predicate, t);
+    }
+
+    @Override
+    protected ScoreQuery getHeadQuery(int object, int predicate) {
+        double[] r = new double[eLength], o = new double[eLength];
+        relations.getRow(predicate, r);
+        entities.getRow(object, o);
+        return new ScoreQuery(object, predicate, r, o);
+    }
+
+    // Candidates are summed side by side, one dimension at a time, each in the order of getScore.
+    @Override
+    protected void getTailScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        int n = candidates.to - candidates.from;
+        double[] t = query.vectors[0];
+        Arrays.fill(scores, 0, n, 0);
+        for (int i = 0; i < eLength; ++i) {
+            double ti = t[i];
+            double[] o = candidates.columns[0][i];
+            for (int e = 0; e < n; ++e) {
+                scores[e] += Math.abs(ti - o[e]);
+            }
+        }
+        for (int e = 0; e < n; ++e) {
+            scores[e] = -scores[e];
+        }
+    }
+
+    @Override
+    protected void getHeadScores(ScoreQuery query, CandidateBlock candidates, double[] scores, double threshold) {
+        int n = candidates.to - candidates.from;
+        double[] r = query.vectors[0], o = query.vectors[1];
+        Arrays.fill(scores, 0, n, 0);
+        for (int i = 0; i < eLength; ++i) {
+            double ri = r[i], oi = o[i];
+            double[] s = candidates.columns[0][i];
+            for (int e = 0; e < n; ++e) {
+                scores[e] += Math.abs(s[e] + ri - oi);
+            }
+        }
+        for (int e = 0; e < n; ++e) {
+            scores[e] = -scores[e];
+        }
+    }
+
+    @Override
+    protected EntityIndex.Metric getIndexMetric() {
+        return EntityIndex.Metric.L1;
+    }
+
+    // Scores are minus the L1 distance of the candidate to t = s + r for tails, and to o - r for heads, up to rounding.
+    @Override
+    protected EntityIndex.Query getTailIndexQuery(ScoreQuery query) {
+        final double[] t = query.vectors[0];
+        return new DistanceQuery() {
+            @Override
+            public double getScore(double[] points, int position) {
+                double score = 0;
+                for (int i = 0, p = position * eLength; i < eLength; ++i, ++p) {
+                    score += Math.abs(t[i] - points[p]);
+                }
+                return -score;
+            }
+        };
+    }
+
+    @Override
+    protected EntityIndex.Query getHeadIndexQuery(ScoreQuery query) {
+        final double[] r = query.vectors[0], o = query.vectors[1];
+        return new DistanceQuery() {
+            @Override
+            public double getScore(double[] points, int position) {
+                double score = 0;
+                for (int i = 0, p = position * eLength; i < eLength; ++i, ++p) {
+                    score += Math.abs(points[p] + r[i] - o[i]);
+                }
+                return -score;
+            }
+        };
+    }
+
+    // Scores within the radius of the pivot differ from its score by at most the radius.
+    private abstract static class DistanceQuery implements EntityIndex.Query {
+        @Override
+        public double getCenter(double[] points, int position) {
+            return getScore(points, position);
+        }
+
+        @Override
+        public double getLowerBound(double center, double radius) {
+            return center - radius;
+        }
+
+        @Override
+        public double getUpperBound(double center, double radius) {
+            return center + radius;
+        }
+    }
 }
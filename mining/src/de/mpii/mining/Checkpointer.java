@@ -0,0 +1,143 @@
+package de.mpii.mining;
+
+import de.mpii.util.AtomicFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodically saves the state of a {@link Miner} into a directory.
+ * <p>
+ * Workers are only paused while the state is copied in memory, it is then written by the checkpoint thread. Each
+ * checkpoint has its own sub-directory with the state and links to the spilled rule segments it refers to, the file
+ * 'latest' names the last complete checkpoint and older ones are removed.
+ */
+public class Checkpointer implements Runnable {
+    public static final Logger LOGGER = Logger.getLogger(Checkpointer.class.getName());
+
+    private static final String LATEST = "latest";
+    private static final String STATE = "state.gz";
+
+    private Miner miner;
+    private File directory;
+    private long interval;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    public Checkpointer(Miner miner, File directory, int intervalSeconds) {
+        this.miner = miner;
+        this.directory = directory;
+        interval = intervalSeconds * 1000L;
+        directory.mkdirs();
+    }
+
+    public void start() {
+        stopped = false;
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot write checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        File latest = getLatestDirectory(directory);
+        File current = new File(directory, "checkpoint-" + System.currentTimeMillis());
+        current.mkdirs();
+        long startTime = System.currentTimeMillis();
+        MinerState state = miner.getState(current);
+        if (state == null) {
+            deleteDirectory(current);
+            return;
+        }
+        long pauseTime = System.currentTimeMillis() - startTime;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new
+                FileOutputStream(new File(current, STATE)))));
+        state.write(out);
+        out.close();
+
+        byte[] name = current.getName().getBytes(StandardCharsets.UTF_8);
+        AtomicFile.write(new File(directory, LATEST), latestOut -> latestOut.write(name));
+        if (latest != null) {
+            deleteDirectory(latest);
+        }
+        LOGGER.info("Checkpoint written to " + current.getPath() + ": " + state.outputLines + " output lines, " +
+                "paused " + pauseTime + "ms, total " + (System.currentTimeMillis() - startTime) + "ms.");
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // Return the directory of the last complete checkpoint, or null if there is none.
+    public static File getLatestDirectory(File directory) throws IOException {
+        File latest = new File(directory, LATEST);
+        if (!latest.exists()) {
+            return null;
+        }
+        return new File(directory, new String(Files.readAllBytes(latest.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    public static MinerState load(File checkpointDirectory) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(new
+                File(checkpointDirectory, STATE)))));
+        MinerState state = MinerState.read(in);
+        in.close();
+        return state;
+    }
+
+    // Keep only the first nLines lines of the file, dropping results written after the checkpoint.
+    public static void truncateLines(File file, long nLines) throws IOException {
+        long length = 0;
+        if (nLines > 0) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            int c;
+            long lines = 0;
+            while (lines < nLines && (c = in.read()) != -1) {
+                ++length;
+                if (c == '\n') {
+                    ++lines;
+                }
+            }
+            in.close();
+            if (lines < nLines) {
+                throw new IOException("Output has fewer lines than the checkpoint.");
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+    }
+}
@@ -0,0 +1,215 @@
+package de.mpii.mining;
+
+import de.mpii.mining.atom.Atom;
+import de.mpii.mining.graph.KnowledgeGraph;
+import de.mpii.mining.output.RuleResult;
+import de.mpii.mining.output.RuleSink;
+import de.mpii.mining.rule.Rule;
+import de.mpii.mining.rule.RulePruner;
+import de.mpii.mining.rule.RuleStats;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several configurations mined in a single search, which uses the loosest thresholds and language bias of all of them.
+ * <p>
+ * Each queued rule keeps the source scr of its heads in every variant, -1 if the head is filtered in the variant, and a
+ * head is alive in the search if it is alive in any variant. Evaluated rules are scored with the thresholds and
+ * embedding weight of each variant and written to the output of the variants they pass, so each output holds the rules
+ * a run with that configuration alone would give, up to the usual differences between runs in which copy of a
+ * duplicated rule is kept.
+ */
+public class ConfigSweep {
+    private List<MinerConfig> variants;
+    private List<RuleSink> outputs;
+    private KnowledgeGraph graph;
+
+    public ConfigSweep(List<MinerConfig> variants, List<RuleSink> outputs, KnowledgeGraph graph) {
+        this.variants = variants;
+        this.outputs = outputs;
+        this.graph = graph;
+    }
+
+    // Turn the base configuration into the one of the search: the lowest thresholds and largest language bias of the
+    // variants, and an embedding weight which is positive if mrr is needed by any of them. Variants must share the
+    // options which change the search space or the confidence, return false otherwise.
+    public static boolean loosen(MinerConfig config, List<MinerConfig> variants) {
+        for (MinerConfig v : variants) {
+            if (!v.embeddingModel.equalsIgnoreCase(config.embeddingModel) || v.floatEmbedding != config
+                    .floatEmbedding || v.embeddingIndexError != config.embeddingIndexError || v.usePCAConf != config
+                    .usePCAConf || v.xyz != config.xyz || (v.targetHeads == null ? config.targetHeads != null : !v
+                    .targetHeads.equals(config.targetHeads))) {
+                return false;
+            }
+        }
+        MinerConfig first = variants.get(0);
+        config.minConf = first.minConf;
+        config.minSupport = first.minSupport;
+        config.minHeadCoverage = first.minHeadCoverage;
+        config.minExceptionConfidence = first.minExceptionConfidence;
+        config.embeddingWeight = first.embeddingWeight;
+        config.maxNumVariables = first.maxNumVariables;
+        config.maxVariableDegree = first.maxVariableDegree;
+        config.maxNumAtoms = first.maxNumAtoms;
+        config.maxNumUnaryPositiveAtoms = first.maxNumUnaryPositiveAtoms;
+        config.maxNumBinaryPositiveAtoms = first.maxNumBinaryPositiveAtoms;
+        config.maxNumExceptionAtoms = first.maxNumExceptionAtoms;
+        config.maxNumUnaryExceptionAtoms = first.maxNumUnaryExceptionAtoms;
+        config.maxNumBinaryExceptionAtoms = first.maxNumBinaryExceptionAtoms;
+        config.maxNumInstantiatedExceptionAtoms = first.maxNumInstantiatedExceptionAtoms;
+        config.maxUniquePredicateOccurrence = first.maxUniquePredicateOccurrence;
+        for (MinerConfig v : variants) {
+            config.minConf = Math.min(config.minConf, v.minConf);
+            config.minSupport = Math.min(config.minSupport, v.minSupport);
+            config.minHeadCoverage = Math.min(config.minHeadCoverage, v.minHeadCoverage);
+            config.minExceptionConfidence = Math.min(config.minExceptionConfidence, v.minExceptionConfidence);
+            config.embeddingWeight = Math.max(config.embeddingWeight, v.embeddingWeight);
+            config.maxNumVariables = Math.max(config.maxNumVariables, v.maxNumVariables);
+            config.maxVariableDegree = Math.max(config.maxVariableDegree, v.maxVariableDegree);
+            config.maxNumAtoms = Math.max(config.maxNumAtoms, v.maxNumAtoms);
+            config.maxNumUnaryPositiveAtoms = Math.max(config.maxNumUnaryPositiveAtoms, v.maxNumUnaryPositiveAtoms);
+            config.maxNumBinaryPositiveAtoms = Math.max(config.maxNumBinaryPositiveAtoms, v.maxNumBinaryPositiveAtoms);
+            config.maxNumExceptionAtoms = Math.max(config.maxNumExceptionAtoms, v.maxNumExceptionAtoms);
+            config.maxNumUnaryExceptionAtoms = Math.max(config.maxNumUnaryExceptionAtoms, v
+                    .maxNumUnaryExceptionAtoms);
+            config.maxNumBinaryExceptionAtoms = Math.max(config.maxNumBinaryExceptionAtoms, v
+                    .maxNumBinaryExceptionAtoms);
+            config.maxNumInstantiatedExceptionAtoms = Math.max(config.maxNumInstantiatedExceptionAtoms, v
+                    .maxNumInstantiatedExceptionAtoms);
+            config.maxUniquePredicateOccurrence = Math.max(config.maxUniquePredicateOccurrence, v
+                    .maxUniquePredicateOccurrence);
+        }
+        return true;
+    }
+
+    // Whether the rule can be generated in a search with the language bias of the variant. Besides the format
+    // pruning, extensions are only generated while the number of atoms of their kind is below its maximum, and dangling
+    // atoms only while the rule can still be closed.
+    private boolean isInBias(Rule r, MinerConfig v) {
+        if (r.atoms.isEmpty()) {
+            return true;
+        }
+        if (RulePruner.isFormatPruned(r, graph, v)) {
+            return false;
+        }
+        if (r.getNumUnaryPositiveAtoms() > v.maxNumUnaryPositiveAtoms || r.getNumBinaryPositiveAtoms() > v
+                .maxNumBinaryPositiveAtoms || r.getNumUnaryExceptionAtoms() > v.maxNumUnaryExceptionAtoms || r
+                .getNumBinaryExceptionAtoms() > v.maxNumBinaryExceptionAtoms || r.getNumInstantiatedExceptionAtoms() >
+                v.maxNumInstantiatedExceptionAtoms) {
+            return false;
+        }
+        Atom last = r.atoms.get(r.atoms.size() - 1);
+        return !last.dangling || r.atoms.size() < v.maxNumAtoms;
+    }
+
+    // Filter the heads of a rule about to be enqueued in each variant: in all variants whose language bias excludes the
+    // rule, and in the variants whose support thresholds the head cannot reach. A head filtered in every variant is
+    // filtered in the search.
+    public void prepare(Rule r) {
+        if (r.headPids == null) {
+            return;
+        }
+        int n = r.headPids.length;
+        if (r.variantSourceScr == null) {
+            r.variantSourceScr = new double[n][];
+            for (int i = 0; i < n; ++i) {
+                r.variantSourceScr[i] = new double[variants.size()];
+                Arrays.fill(r.variantSourceScr[i], r.sourceScr[i]);
+            }
+        }
+        boolean[] inBias = new boolean[variants.size()];
+        for (int v = 0; v < inBias.length; ++v) {
+            inBias[v] = isInBias(r, variants.get(v));
+        }
+        for (int i = 0; i < n; ++i) {
+            double[] scr = r.variantSourceScr[i];
+            if (r.sourceScr[i] == -1) {
+                Arrays.fill(scr, -1);
+                continue;
+            }
+            int head = r.headPids[i];
+            int bound = -1;
+            boolean alive = false;
+            for (int v = 0; v < scr.length; ++v) {
+                if (scr[v] == -1) {
+                    continue;
+                }
+                MinerConfig config = variants.get(v);
+                if (inBias[v]) {
+                    if (bound == -1) {
+                        bound = RulePruner.getSupportUpperBound(r, head, graph);
+                    }
+                    if (bound >= config.minSupport && (double) bound / graph.pidSOInstances[head].size() >= config
+                            .minHeadCoverage) {
+                        alive = true;
+                        continue;
+                    }
+                }
+                scr[v] = -1;
+            }
+            if (!alive) {
+                r.sourceScr[i] = -1;
+            }
+        }
+    }
+
+    // Score of the i-th head of the matched rule in the variant, -1 if it is filtered. Stats are computed with the
+    // search configuration, so that the scr of a head is already -1 if it fails the loosest thresholds.
+    private double score(Rule r, int i, int v) {
+        RuleStats stats = r.stats;
+        MinerConfig config = variants.get(v);
+        double sourceScr = r.variantSourceScr[i][v];
+        if (sourceScr == -1 || stats.scr[i] == -1) {
+            return -1;
+        }
+        if (stats.headCoverage[i] < config.minHeadCoverage || stats.bodySupport <= config.minSupport || stats
+                .ruleSupport[i] < config.minSupport || stats.confidence[i] < config.minConf || (r.getState() >= 3 &&
+                stats.ec[i] < config.minExceptionConfidence)) {
+            return -1;
+        }
+        double scr = stats.confidence[i] * (1 - config.embeddingWeight);
+        if (config.embeddingWeight > 0) {
+            scr += stats.mrr[i] * config.embeddingWeight;
+        }
+        return scr > sourceScr + 1e-3 ? scr : -1;
+    }
+
+    // Score the matched rule in every variant and write the results, instead of the content pruning of a single
+    // configuration. The scr of a head in the search becomes its highest scr in the variants. Return true if the rule
+    // is pruned.
+    public boolean route(Rule r) {
+        if (!r.extensible) {
+            return true;
+        }
+        if (r.stats == null) {
+            return false;
+        }
+        RuleStats stats = r.stats;
+        stats.variantScr = new double[stats.pids.length][variants.size()];
+        boolean hasGoodHead = false;
+        for (int i = 0; i < stats.pids.length; ++i) {
+            double maxScr = -1;
+            for (int v = 0; v < variants.size(); ++v) {
+                double scr = score(r, i, v);
+                stats.variantScr[i][v] = scr;
+                if (scr == -1) {
+                    continue;
+                }
+                maxScr = Math.max(maxScr, scr);
+                MinerConfig config = variants.get(v);
+                outputs.get(v).accept(RuleResult.of(r, i, graph, config.usePCAConf, config.embeddingWeight > 0 ?
+                        stats.mrr[i] : -1, scr));
+            }
+            stats.scr[i] = maxScr;
+            hasGoodHead |= maxScr != -1;
+        }
+        return !hasGoodHead;
+    }
+
+    public void close() {
+        for (RuleSink output : outputs) {
+            output.close();
+        }
+    }
+}
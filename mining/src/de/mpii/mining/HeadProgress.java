@@ -0,0 +1,151 @@
+package de.mpii.mining;
+
+import de.mpii.mining.rule.Rule;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Progress of each head in a best-first search with top-k: the scr bounds of the queued rules in which the head is
+ * alive and the k best scores output so far.
+ * <p>
+ * The scr bound of a queued rule also holds for all of its extensions (see RulePruner.getScrUpperBound). The top-k rules
+ * of a head are therefore final when no queued rule can still produce the head, or when the k-th best scr of the head
+ * is at least the highest bound of the queued rules in which it is alive.
+ */
+public class HeadProgress {
+    private int k;
+    private int[] heads;
+    // Number of queued rules with each scr bound, per head.
+    // Indexed by pid, null for the pids which are not heads of the search.
+    private List<TreeMap<Double, Integer>> queuedBounds;
+    private List<PriorityQueue<Double>> topScores;
+
+    public HeadProgress(int[] heads, int nRelations, int k) {
+        this.k = k;
+        this.heads = heads;
+        queuedBounds = new ArrayList<>(Collections.nCopies(nRelations, null));
+        topScores = new ArrayList<>(Collections.nCopies(nRelations, null));
+        for (int pid : heads) {
+            queuedBounds.set(pid, new TreeMap<>());
+            topScores.set(pid, new PriorityQueue<>());
+        }
+    }
+
+    private void addBound(int pid, double bound, int count) {
+        TreeMap<Double, Integer> bounds = queuedBounds.get(pid);
+        synchronized (bounds) {
+            int n = bounds.getOrDefault(bound, 0) + count;
+            if (n == 0) {
+                bounds.remove(bound);
+            } else {
+                bounds.put(bound, n);
+            }
+        }
+    }
+
+    // A rule is enqueued.
+    public void addRule(Rule r) {
+        if (r.headPids == null) {
+            for (int pid : heads) {
+                addBound(pid, 1, 1);
+            }
+            return;
+        }
+        for (int i = 0; i < r.headPids.length; ++i) {
+            if (r.sourceScr[i] != -1) {
+                addBound(r.headPids[i], r.scrUpperBound == null ? 1 : r.scrUpperBound[i], 1);
+            }
+        }
+    }
+
+    // A rule with the given heads and scr bounds (both null for all heads of the search), as they were when the rule
+    // was enqueued, is processed and its extensions are enqueued.
+    public void removeRule(int[] pids, double[] bounds) {
+        if (pids == null) {
+            for (int pid : heads) {
+                addBound(pid, 1, -1);
+            }
+            return;
+        }
+        for (int i = 0; i < pids.length; ++i) {
+            addBound(pids[i], bounds == null ? 1 : bounds[i], -1);
+        }
+    }
+
+    public void addResult(int pid, double scr) {
+        PriorityQueue<Double> top = topScores.get(pid);
+        synchronized (top) {
+            top.add(scr);
+            if (top.size() > k) {
+                top.poll();
+            }
+        }
+    }
+
+    // No rule can enter the top-k of the head any more.
+    public boolean isFinal(int pid) {
+        double maxBound;
+        TreeMap<Double, Integer> bounds = queuedBounds.get(pid);
+        synchronized (bounds) {
+            if (bounds.isEmpty()) {
+                return true;
+            }
+            maxBound = bounds.lastKey();
+        }
+        PriorityQueue<Double> top = topScores.get(pid);
+        synchronized (top) {
+            return top.size() == k && top.peek() >= maxBound;
+        }
+    }
+
+    public boolean isAllFinal() {
+        for (int pid : heads) {
+            if (!isFinal(pid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        for (int pid : heads) {
+            TreeMap<Double, Integer> bounds = queuedBounds.get(pid);
+            synchronized (bounds) {
+                out.writeInt(bounds.size());
+                for (Map.Entry<Double, Integer> e : bounds.entrySet()) {
+                    out.writeDouble(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+            PriorityQueue<Double> top = topScores.get(pid);
+            synchronized (top) {
+                out.writeInt(top.size());
+                for (double scr : top) {
+                    out.writeDouble(scr);
+                }
+            }
+        }
+    }
+
+    public void read(DataInputStream in) throws IOException {
+        for (int pid : heads) {
+            TreeMap<Double, Integer> bounds = queuedBounds.get(pid);
+            synchronized (bounds) {
+                bounds.clear();
+                for (int n = in.readInt(); n > 0; --n) {
+                    bounds.put(in.readDouble(), in.readInt());
+                }
+            }
+            PriorityQueue<Double> top = topScores.get(pid);
+            synchronized (top) {
+                top.clear();
+                for (int n = in.readInt(); n > 0; --n) {
+                    top.add(in.readDouble());
+                }
+            }
+        }
+    }
+}
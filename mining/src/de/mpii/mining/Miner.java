@@ -1,22 +1,21 @@
 package de.mpii.mining;
 
 import de.mpii.embedding.EmbeddingClient;
-import de.mpii.embedding.HolEClient;
-import de.mpii.embedding.SSPClient;
-import de.mpii.embedding.TransEClient;
 import de.mpii.mining.atom.Atom;
 import de.mpii.mining.atom.BinaryAtom;
 import de.mpii.mining.atom.InstantiatedAtom;
 import de.mpii.mining.atom.UnaryAtom;
 import de.mpii.mining.graph.KnowledgeGraph;
+import de.mpii.mining.output.RuleResult;
+import de.mpii.mining.output.RuleSink;
 import de.mpii.mining.rule.*;
-import de.mpii.util.Infer;
 
-import java.io.PrintWriter;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -31,44 +30,69 @@ public class Miner implements Runnable {
 
     public EmbeddingClient embeddingClient;
     public KnowledgeGraph knowledgeGraph;
-    public RuleQueue ruleQueue;
+    public volatile RuleQueue ruleQueue;
+    // Evaluations of rule bodies from previous runs, null if not used.
+    public EvaluationCache evaluationCache;
+    // Set with the evaluation cache if the embedding is used.
+    private File rankCacheFile;
+    private long rankCacheChecksum;
+    // If not null, the search is shared by several configurations, which have their own outputs.
+    public ConfigSweep sweep;
 
     public MinerConfig config;
 
-    public PrintWriter output;
+    public RuleSink output;
+    // Number of results already in the output of a resumed run.
+    private long resumedOutputLines = 0;
 
-    public Miner(String workspace, MinerConfig config, PrintWriter output) {
+    // Absolute time in milliseconds to stop mining, 0 for no deadline.
+    private long deadlineTime = 0;
+    // Only set for best-first mining with top-k.
+    private volatile HeadProgress headProgress = null;
+    // Index of the head partition being mined.
+    private volatile int currentPartition = 0;
+
+    public Miner(String workspace, MinerConfig config, RuleSink output) {
+        this(new MiningSession(workspace), config, output);
+    }
+
+    public Miner(MiningSession session, MinerConfig config, RuleSink output) {
         if (config.embeddingWeight != 0) {
-            if (config.embeddingModel.equalsIgnoreCase("transe")) {
-                embeddingClient = new TransEClient(workspace, "L1");
-            } else if (config.embeddingModel.equalsIgnoreCase("hole")) {
-                embeddingClient = new HolEClient(workspace);
-            } else if (config.embeddingModel.equalsIgnoreCase("ssp")) {
-                embeddingClient = new SSPClient(workspace);
-            } else {
-                throw new RuntimeException("Invalid embedding model");
-            }
+            embeddingClient = session.getEmbeddingClient(config.embeddingModel, config.floatEmbedding,
+                    config.embeddingIndexError);
+            embeddingClient.setRankCacheMemory((long) config.rankCacheMemory << 20);
+            embeddingClient.setScoreProfileMemory((long) config.scoreProfileMemory << 20);
         }
-        knowledgeGraph = new KnowledgeGraph(workspace);
-        Infer.knowledgeGraph = knowledgeGraph;
-        ruleQueue = new RuleQueue(config.enqueueLimit, config.numWorkers);
+        knowledgeGraph = session.knowledgeGraph;
         this.config = config;
         this.output = output;
+        if (config.evaluationCacheDirectory != null) {
+            try {
+                long embeddingChecksum = embeddingClient == null ? 0 : session.getEmbeddingChecksum(config
+                        .embeddingModel, config.floatEmbedding, config.embeddingIndexError);
+                evaluationCache = new EvaluationCache(new File(config.evaluationCacheDirectory), session
+                        .getGraphChecksum(), embeddingChecksum, collectsTypes(), collectsInstantiatedLinks());
+                if (embeddingClient != null) {
+                    rankCacheChecksum = embeddingChecksum;
+                    rankCacheFile = new File(config.evaluationCacheDirectory, String.format("ranks-%016x.cache",
+                            embeddingChecksum));
+                    embeddingClient.loadRankCache(rankCacheFile, embeddingChecksum);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
         matchedRule = 0;
     }
 
-    public static ArrayList<SOInstance> samplingSOHeadInstances(ArrayList<SOInstance> instances) {
-        if (instances.size() > RuleStats.MRR_SAMPLE_SIZE) {
-            Collections.shuffle(instances);
-            ArrayList<SOInstance> result = new ArrayList<>();
-            for (int i = 0; i < RuleStats.MRR_SAMPLE_SIZE; ++i) {
-                result.add(instances.get(i));
-            }
-            return result;
-        } else {
-            return instances;
-        }
+    private boolean collectsTypes() {
+        return config.maxNumUnaryPositiveAtoms > 0 || (config.maxNumExceptionAtoms > 0 && config
+                .maxNumUnaryExceptionAtoms > 0);
+    }
+
+    private boolean collectsInstantiatedLinks() {
+        return config.maxNumExceptionAtoms > 0 && config.maxNumInstantiatedExceptionAtoms > 0;
     }
 
     private boolean duplicatedVar(int variableValue[], int newV) {
@@ -128,11 +152,10 @@ public class Miner implements Runnable {
                     }
                 }
                 if (variableValues[i] != -1) {
-                    if (config.maxNumUnaryPositiveAtoms > 0 || (config.maxNumExceptionAtoms > 0 && config
-                            .maxNumUnaryExceptionAtoms > 0)) {
+                    if (collectsTypes()) {
                         rule.extensionInfo.addTypes(i, knowledgeGraph.types[variableValues[i]]);
                     }
-                    if (config.maxNumExceptionAtoms > 0 && config.maxNumInstantiatedExceptionAtoms > 0) {
+                    if (collectsInstantiatedLinks()) {
                         rule.extensionInfo.addInstantiatedLinks(i, knowledgeGraph.outEdges[variableValues[i]]);
                     }
                 }
@@ -244,194 +267,419 @@ public class Miner implements Runnable {
             r.extensible = true;
             return;
         }
+        long startTime = System.nanoTime();
+        EvaluationCache.Entry cached = evaluationCache == null ? null : evaluationCache.get(r);
+        if (cached == null || !setCachedEvaluation(r, cached)) {
+            matchRule(r, cached, startTime);
+        }
+
+        ++matchedRule;
+        if (matchedRule % MATCH_RULE_LOG_INTERVAL == 0) {
+            LOGGER.info("MatchedRuleBodyCount: " + matchedRule);
+        }
+    }
+
+    // Match the rule on the graph. The evaluation is added to the cache if used, keeping the mrr of the cached entry.
+    private void matchRule(Rule r, EvaluationCache.Entry cached, long startTime) {
         int[] variableValues = new int[r.nVariables];
         Arrays.fill(variableValues, -1);
-        RuleStats stats = new RuleStats(r.sourceScr);
+        RuleStats stats = new RuleStats(r);
         r.extensionInfo = new RuleExtensionInfo(r.nVariables);
         recur(r, 1, variableValues, stats);
 
+        EvaluationCache.Entry entry = evaluationCache == null ? null : new EvaluationCache.Entry(r);
         // If the monotonic part is closed, then set stats.
         if (r.closed) {
-            stats.simplify(r, knowledgeGraph, embeddingClient, config);
+            if (entry == null) {
+                stats.simplify(r, knowledgeGraph, embeddingClient, config);
+            } else {
+                if (cached != null) {
+                    entry.addMrr(cached);
+                }
+                stats.fillCacheEntry(r, knowledgeGraph, config, entry);
+                stats.simplify(r, knowledgeGraph, embeddingClient, config, entry);
+            }
             r.stats = stats;
         }
+        r.matchTime = System.nanoTime() - startTime;
+        if (entry != null) {
+            entry.matchTime = r.matchTime;
+            evaluationCache.put(r, entry);
+        }
+    }
 
-        ++matchedRule;
-        if (matchedRule % MATCH_RULE_LOG_INTERVAL == 0) {
-            LOGGER.info("MatchedRuleBodyCount: " + matchedRule);
+    // Set the evaluation of the rule from its cache entry. Return false if the entry is not enough for the current
+    // thresholds, then the rule must be matched.
+    private boolean setCachedEvaluation(Rule r, EvaluationCache.Entry entry) {
+        if (r.closed) {
+            RuleStats stats = new RuleStats(r);
+            stats.headInstances = null;
+            if (!stats.simplify(r, knowledgeGraph, embeddingClient, config, entry)) {
+                return false;
+            }
+            r.stats = stats;
         }
+        r.extensible = entry.extensible;
+        r.extensionInfo = entry.extensionInfo;
+        // Kept for the cost estimation of the extensions.
+        r.matchTime = entry.matchTime;
+        return true;
+    }
+
+    private RuleQueue newRuleQueue() {
+        return new RuleQueue(config.enqueueLimit, config.numWorkers, knowledgeGraph.nRelations, config
+                .frontierMemoryBudget * 1024L * 1024L, config.spillDirectory == null ? null : new File(config
+                .spillDirectory), config.bestFirst);
+    }
+
+    // Enqueue the extended rule if it is not pruned by format. Heads which cannot reach the support thresholds are
+    // killed before enqueuing.
+    private void enqueue(Rule newR) {
+        if (newR == null || RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
+            return;
+        }
+        RulePruner.pruneHeadsBySupportBound(newR, knowledgeGraph, config);
+        newR.estimatedCost = estimateCost(newR);
+        pushRule(newR);
+    }
+
+    private void pushRule(Rule r) {
+        if (sweep != null) {
+            sweep.prepare(r);
+        }
+        if (ruleQueue.enqueue(r) && headProgress != null) {
+            headProgress.addRule(r);
+        }
+    }
+
+    // Estimate the matching time of an extended rule from the measured matching time of its source rule. A dangling
+    // atom multiplies the number of bindings by the average fan-out of its predicate in the extended direction, while
+    // closing atoms only filter the existing bindings.
+    private double estimateCost(Rule newR) {
+        double cost = Math.max(newR.sourceMatchTime, 1);
+        Atom last = newR.atoms.get(newR.atoms.size() - 1);
+        if (last.dangling && last.pid >= 0) {
+            BinaryAtom atom = (BinaryAtom) last;
+            cost *= Math.max(atom.oid == newR.nVariables - 1 ? knowledgeGraph.subjectFanout[atom.pid] :
+                    knowledgeGraph.objectFanout[atom.pid], 1);
+        }
+        return cost;
     }
 
     public void run() {
         while (true) {
+            if (deadlineTime > 0 && System.currentTimeMillis() > deadlineTime && ruleQueue.close()) {
+                LOGGER.info("Deadline reached, stop mining.");
+            }
             Rule r = ruleQueue.dequeue();
             if (r == null) {
                 break;
             }
-            matchRule(r);
-            if (RulePruner.isContentPruned(r, config)) {
+            if (headProgress == null) {
+                processRule(r);
                 continue;
             }
-            if (r.stats != null) {
-                for (int pid = 0; pid < knowledgeGraph.nRelations; ++pid) {
-                    if (r.stats.scr[pid] != -1) {
-                        r.atoms.get(0).pid = pid;
-
-                        String result = String.format(
-                                "%s\thc:\t%.3f\t%sconf:\t%.3f\tmrr:\t%.3f\tscr:\t%.3f\tsup:\t%d\tec:\t%.3f",
-                                r.getString(knowledgeGraph.relationsString, knowledgeGraph.typesString, knowledgeGraph.entitiesString),
-                                r.stats.headCoverage[pid],
-                                config.usePCAConf ? "pca" : "",
-                                r.stats.confidence[pid],
-                                r.stats.mrr[pid],
-                                r.stats.scr[pid],
-                                r.stats.ruleSupport[pid],
-                                r.stats.ec[pid]);
-                        System.out.println(result);
-                        synchronized (output) {
-                            output.println(result);
-                            output.flush();
-                        }
-                    }
+            // Heads whose top-k rules are final are not extended any more.
+            for (int i = 0; r.headPids != null && i < r.headPids.length; ++i) {
+                if (headProgress.isFinal(r.headPids[i])) {
+                    r.sourceScr[i] = -1;
                 }
-                r.atoms.get(0).pid = -1;
             }
-            if (r.atoms.size() >= config.maxNumAtoms) { // TODO: Migated from Pruner.
-                continue;
+            int[] pendingHeads = r.headPids;
+            double[] pendingBounds = r.scrUpperBound;
+            processRule(r);
+            headProgress.removeRule(pendingHeads, pendingBounds);
+            if (headProgress.isAllFinal() && ruleQueue.close()) {
+                LOGGER.info("Top-" + config.topK + " rules of all heads are final, stop mining.");
             }
-            int state = r.getState();
-            // Type of last atom:
-            // empty: -1 -> dangling(0) -> binary closed(1) -> unary closed(2) -> unary exception(3) -> binary exception(4).
-            if (state <= 0 && r.nVariables < config.maxNumVariables && r.getNumBinaryPositiveAtoms() < config
-                    .maxNumBinaryPositiveAtoms && r.atoms.size() < config.maxNumAtoms - 1) {
-                // TODO:
-                // Migated from Pruner.
-                // Add dangling atoms.
-                if (r.atoms.isEmpty()) {
-                    // First binary atom has anonymous pid.
-                    Rule newR = r.addDanglingAtom(-1, -1, true);
-                    ruleQueue.enqueue(newR);
-                } else {
-                    for (int v = 0; v < r.nVariables; ++v) {
-                        if (config.xyz && v > 0) {
-                            // only add dangling to 0
-                            continue;
-                        }
-                        if (v == 1) {
-                            // not adding dangling to 1;
-                            continue;
-                        }
-                        if (r.extensionInfo.binaryDanglingPids[v] == null) {
-                            continue;
-                        }
-                        for (int i : r.extensionInfo.binaryDanglingPids[v]) {
-                            if (i >= 0) {
-                                Rule newR = r.addDanglingAtom(v, i, true);
-                                if (!RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                    ruleQueue.enqueue(newR);
-                                }
-                            } else {
-                                if (config.xyz) {
-                                    // only add forward edge to 0
-                                    continue;
-                                }
-                                Rule newR = r.addDanglingAtom(v, -i - 1, false);
-                                if (!RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                    ruleQueue.enqueue(newR);
-                                }
+        }
+        LOGGER.info("A worker is shutting down.");
+    }
+
+    // Match the rule, output it and enqueue its extensions.
+    private void processRule(Rule r) {
+        matchRule(r);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Cost of %s: estimated %.0f ns, actual %d ns", r.getString(knowledgeGraph
+                    .relationsString, knowledgeGraph.typesString, knowledgeGraph.entitiesString), r.estimatedCost,
+                    r.matchTime));
+        }
+        if (sweep != null) {
+            // Results are written to the outputs of the variants instead.
+            if (sweep.route(r)) {
+                return;
+            }
+        } else {
+            if (RulePruner.isContentPruned(r, config)) {
+                return;
+            }
+            outputResults(r);
+        }
+        if (r.atoms.size() >= config.maxNumAtoms) { // TODO: Migated from Pruner.
+            return;
+        }
+        int state = r.getState();
+        // Type of last atom:
+        // empty: -1 -> dangling(0) -> binary closed(1) -> unary closed(2) -> unary exception(3) -> binary exception(4).
+        if (state <= 0 && r.nVariables < config.maxNumVariables && r.getNumBinaryPositiveAtoms() < config
+                .maxNumBinaryPositiveAtoms && r.atoms.size() < config.maxNumAtoms - 1) {
+            // TODO:
+            // Migated from Pruner.
+            // Add dangling atoms.
+            if (r.atoms.isEmpty()) {
+                // First binary atom has anonymous pid.
+                Rule newR = r.addDanglingAtom(-1, -1, true);
+                RulePruner.pruneHeadsBySupportBound(newR, knowledgeGraph, config);
+                pushRule(newR);
+            } else {
+                for (int v = 0; v < r.nVariables; ++v) {
+                    if (config.xyz && v > 0) {
+                        // only add dangling to 0
+                        continue;
+                    }
+                    if (v == 1) {
+                        // not adding dangling to 1;
+                        continue;
+                    }
+                    if (r.extensionInfo.binaryDanglingPids[v] == null) {
+                        continue;
+                    }
+                    for (int i : r.extensionInfo.binaryDanglingPids[v]) {
+                        if (i >= 0) {
+                            Rule newR = r.addDanglingAtom(v, i, true);
+                            enqueue(newR);
+                        } else {
+                            if (config.xyz) {
+                                // only add forward edge to 0
+                                continue;
                             }
+                            Rule newR = r.addDanglingAtom(v, -i - 1, false);
+                            enqueue(newR);
                         }
                     }
                 }
             }
-            if (state <= 1 && r.getNumBinaryPositiveAtoms() < config.maxNumBinaryPositiveAtoms) {
-                // Add closing binary atoms.
-                for (int i = 0; i < r.nVariables; ++i) {
-                    for (int j = 0; j < r.nVariables; ++j) {
-                        if (config.xyz && (i != 2 || j != 1)) {
-                            continue;
-                        }
-                        if (i == j || r.extensionInfo.binaryClosingPids[i][j] == null) {
-                            continue;
-                        }
-                        for (int k : r.extensionInfo.binaryClosingPids[i][j]) {
-                            Rule newR = r.addClosingBinaryAtom(i, k, j, false);
-                            if (newR != null && !RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                ruleQueue.enqueue(newR);
-                            }
-                        }
+        }
+        if (state <= 1 && r.getNumBinaryPositiveAtoms() < config.maxNumBinaryPositiveAtoms) {
+            // Add closing binary atoms.
+            for (int i = 0; i < r.nVariables; ++i) {
+                for (int j = 0; j < r.nVariables; ++j) {
+                    if (config.xyz && (i != 2 || j != 1)) {
+                        continue;
+                    }
+                    if (i == j || r.extensionInfo.binaryClosingPids[i][j] == null) {
+                        continue;
+                    }
+                    for (int k : r.extensionInfo.binaryClosingPids[i][j]) {
+                        Rule newR = r.addClosingBinaryAtom(i, k, j, false);
+                        enqueue(newR);
                     }
                 }
             }
+        }
 
-            // Add other atoms only when the binary monotonic parts are closed.
-            if (r.isBinaryClosed()) {
-                // Add closing unary atoms.
-                if (state <= 2 && r.getNumUnaryPositiveAtoms() < config.maxNumUnaryPositiveAtoms) {
-                    for (int i = 0; i < r.nVariables; ++i) {
-                        for (Map.Entry<Integer, Integer> e : r.extensionInfo.unaryTypes[i].entrySet()) {
-                            int j = e.getKey();
-                            Rule newR = r.addClosingUnaryAtom(i, j, false);
-                            if (newR != null && !RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                ruleQueue.enqueue(newR);
-                            }
-                        }
+        // Add other atoms only when the binary monotonic parts are closed.
+        if (r.isBinaryClosed()) {
+            // Add closing unary atoms.
+            if (state <= 2 && r.getNumUnaryPositiveAtoms() < config.maxNumUnaryPositiveAtoms) {
+                for (int i = 0; i < r.nVariables; ++i) {
+                    for (Map.Entry<Integer, Integer> e : r.extensionInfo.unaryTypes[i].entrySet()) {
+                        int j = e.getKey();
+                        Rule newR = r.addClosingUnaryAtom(i, j, false);
+                        enqueue(newR);
                     }
                 }
-                int nInstantiatedExceptions = r.getNumInstantiatedExceptionAtoms();
-                int nUnaryExceptions = r.getNumUnaryExceptionAtoms();
-                int nBinaryExceptions = r.getNumBinaryExceptionAtoms();
-                if (nInstantiatedExceptions + nUnaryExceptions + nBinaryExceptions < config.maxNumExceptionAtoms) {
-                    // Add exception instantiated atoms.
-                    if (state <= 3 && nInstantiatedExceptions < config.maxNumInstantiatedExceptionAtoms) {
-                        for (int i = 0; i < r.nVariables; ++i) {
-                            for (KnowledgeGraph.OutgoingEdge e : r.extensionInfo.getTopInstantiatedLinksForVariable(i)) {
-                                Rule newR = e.pid >= 0 ? r.addClosingInstantiatedAtom(i, e.pid, e.oid, true, false) : r
-                                        .addClosingInstantiatedAtom(i, -1 - e.pid, e.oid, true, true);
-                                if (newR != null && !RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                    ruleQueue.enqueue(newR);
-                                }
-                            }
+            }
+            int nInstantiatedExceptions = r.getNumInstantiatedExceptionAtoms();
+            int nUnaryExceptions = r.getNumUnaryExceptionAtoms();
+            int nBinaryExceptions = r.getNumBinaryExceptionAtoms();
+            if (nInstantiatedExceptions + nUnaryExceptions + nBinaryExceptions < config.maxNumExceptionAtoms) {
+                // Add exception instantiated atoms.
+                if (state <= 3 && nInstantiatedExceptions < config.maxNumInstantiatedExceptionAtoms) {
+                    for (int i = 0; i < r.nVariables; ++i) {
+                        for (KnowledgeGraph.OutgoingEdge e : r.extensionInfo.getTopInstantiatedLinksForVariable(i)) {
+                            Rule newR = e.pid >= 0 ? r.addClosingInstantiatedAtom(i, e.pid, e.oid, true, false) : r
+                                    .addClosingInstantiatedAtom(i, -1 - e.pid, e.oid, true, true);
+                            enqueue(newR);
                         }
                     }
+                }
 
-                    // Add exception unary atoms.
-                    if (state <= 3 && nUnaryExceptions < config.maxNumUnaryExceptionAtoms) {
-                        for (int i = 0; i < r.nVariables; ++i) {
-                            for (int j : r.extensionInfo.getTopTypesForVariable(i)) {
-                                Rule newR = r.addClosingUnaryAtom(i, j, true);
-                                if (newR != null && !RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                    ruleQueue.enqueue(newR);
-                                }
-                            }
+                // Add exception unary atoms.
+                if (state <= 3 && nUnaryExceptions < config.maxNumUnaryExceptionAtoms) {
+                    for (int i = 0; i < r.nVariables; ++i) {
+                        for (int j : r.extensionInfo.getTopTypesForVariable(i)) {
+                            Rule newR = r.addClosingUnaryAtom(i, j, true);
+                            enqueue(newR);
                         }
                     }
-                    // Add exception binary atoms.
-                    if (state <= 4 && nBinaryExceptions < config.maxNumBinaryExceptionAtoms) {
-                        for (int i = 0; i < r.nVariables; ++i) {
-                            for (int j = 0; j < r.nVariables; ++j) {
-                                if (i == j || r.extensionInfo.binaryClosingPids[i][j] == null) {
-                                    continue;
-                                }
-                                for (int k : r.extensionInfo.binaryClosingPids[i][j]) {
-                                    Rule newR = r.addClosingBinaryAtom(i, k, j, true);
-                                    if (newR != null && !RulePruner.isFormatPruned(newR, knowledgeGraph, config)) {
-                                        ruleQueue.enqueue(newR);
-                                    }
-                                }
+                }
+                // Add exception binary atoms.
+                if (state <= 4 && nBinaryExceptions < config.maxNumBinaryExceptionAtoms) {
+                    for (int i = 0; i < r.nVariables; ++i) {
+                        for (int j = 0; j < r.nVariables; ++j) {
+                            if (i == j || r.extensionInfo.binaryClosingPids[i][j] == null) {
+                                continue;
+                            }
+                            for (int k : r.extensionInfo.binaryClosingPids[i][j]) {
+                                Rule newR = r.addClosingBinaryAtom(i, k, j, true);
+                                enqueue(newR);
                             }
                         }
                     }
                 }
             }
         }
-        LOGGER.info("A worker is shutting down.");
     }
 
-    public void mine() {
-        LOGGER.info("Mining.");
+    private void outputResults(Rule r) {
+        if (r.stats == null) {
+            return;
+        }
+        for (int i = 0; i < r.stats.pids.length; ++i) {
+            if (r.stats.scr[i] != -1) {
+                output.accept(RuleResult.of(r, i, knowledgeGraph, config.usePCAConf, r.stats.mrr[i], r.stats.scr[i]));
+                if (headProgress != null) {
+                    headProgress.addResult(r.stats.pids[i], r.stats.scr[i]);
+                }
+            }
+        }
+    }
+
+    // Head pids given by targetHeads (relation names or ids, comma-separated), or null for all heads.
+    public static int[] parseHeads(String targetHeads, Map<String, Integer> relationsStringMap, int nRelations) {
+        if (targetHeads == null) {
+            return null;
+        }
+        TreeSet<Integer> heads = new TreeSet<>();
+        for (String head : targetHeads.split(",")) {
+            head = head.trim();
+            if (head.isEmpty()) {
+                continue;
+            }
+            Integer pid = relationsStringMap.get(head);
+            if (pid == null) {
+                try {
+                    pid = Integer.parseInt(head);
+                } catch (NumberFormatException e) {
+                    pid = -1;
+                }
+            }
+            if (pid < 0 || pid >= nRelations) {
+                throw new RuntimeException("Invalid head predicate: " + head);
+            }
+            heads.add(pid);
+        }
+        int[] result = new int[heads.size()];
+        int i = 0;
+        for (int pid : heads) {
+            result[i++] = pid;
+        }
+        return result;
+    }
+
+    // Split heads into at most nPartitions groups of balanced total number of facts (heaviest head first into the
+    // lightest group). Groups are returned from the heaviest to the lightest, each of them sorted by pid.
+    public static List<int[]> partitionHeads(int[] heads, int[] factCounts, int nPartitions) {
+        Integer[] sorted = new Integer[heads.length];
+        for (int i = 0; i < heads.length; ++i) {
+            sorted[i] = heads[i];
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(factCounts[o2], factCounts[o1]);
+            }
+        });
+        nPartitions = Math.max(1, Math.min(nPartitions, heads.length));
+        List<List<Integer>> groups = new ArrayList<>();
+        long[] load = new long[nPartitions];
+        for (int i = 0; i < nPartitions; ++i) {
+            groups.add(new ArrayList<>());
+        }
+        for (int pid : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < nPartitions; ++i) {
+                if (load[i] < load[lightest]) {
+                    lightest = i;
+                }
+            }
+            groups.get(lightest).add(pid);
+            load[lightest] += factCounts[pid];
+        }
+        Integer[] order = new Integer[nPartitions];
+        for (int i = 0; i < nPartitions; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(load[o2], load[o1]);
+            }
+        });
+        List<int[]> result = new ArrayList<>();
+        for (int g : order) {
+            if (groups.get(g).isEmpty()) {
+                continue;
+            }
+            int[] group = new int[groups.get(g).size()];
+            for (int i = 0; i < group.length; ++i) {
+                group[i] = groups.get(g).get(i);
+            }
+            Arrays.sort(group);
+            result.add(group);
+        }
+        return result;
+    }
+
+    // Mine rules for the given heads (null for all heads) as an independent search, with its own queue and
+    // deduplication set.
+    public void mineHeads(int[] heads) {
+        mineHeads(heads, null, null);
+    }
+
+    // If resume is not null, the search continues from the given state instead of the empty rule. Spilled rules of
+    // the state are in resumeDirectory.
+    private void mineHeads(int[] heads, MinerState resume, File resumeDirectory) {
+        if (config.deadline > 0 && deadlineTime == 0) {
+            deadlineTime = System.currentTimeMillis() + config.deadline * 1000L;
+        }
+        RuleQueue queue = newRuleQueue();
         Rule emptyRule = new Rule(knowledgeGraph.nRelations);
-        ruleQueue.enqueue(emptyRule);
+        if (heads != null) {
+            emptyRule.setHeads(heads);
+        }
+        HeadProgress progress = null;
+        if (config.bestFirst && config.topK > 0) {
+            int[] searchHeads = heads;
+            if (searchHeads == null) {
+                searchHeads = new int[knowledgeGraph.nRelations];
+                for (int i = 0; i < searchHeads.length; ++i) {
+                    searchHeads[i] = i;
+                }
+            }
+            progress = new HeadProgress(searchHeads, knowledgeGraph.nRelations, config.topK);
+        }
+        if (resume != null) {
+            try {
+                queue.setState(resume.queue, resumeDirectory);
+                if (progress != null) {
+                    if (resume.headProgress == null) {
+                        throw new RuntimeException("Checkpoint is not taken with top-k.");
+                    }
+                    progress.read(new DataInputStream(new ByteArrayInputStream(resume.headProgress)));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            matchedRule = resume.matchedRule;
+        }
+        // The queue is published last, a checkpoint taken on it sees the matching head progress.
+        headProgress = progress;
+        ruleQueue = queue;
+        if (resume == null) {
+            pushRule(emptyRule);
+        }
         ExecutorService executor = Executors.newFixedThreadPool(config.numWorkers);
         List<Future> futures = new ArrayList<>();
         for (int i = 0; i < config.numWorkers; ++i) {
@@ -445,6 +693,110 @@ public class Miner implements Runnable {
             e.printStackTrace();
         }
         executor.shutdown();
-        output.close();
+    }
+
+    // State of the current search, taken when no rule is being processed. Return null if the search is ended.
+    public MinerState getState(File linkDirectory) throws IOException {
+        RuleQueue queue = ruleQueue;
+        if (queue == null || !queue.pause()) {
+            return null;
+        }
+        try {
+            MinerState state = new MinerState();
+            state.partition = currentPartition;
+            state.matchedRule = matchedRule;
+            output.flush();
+            state.outputLines = resumedOutputLines + output.getCount();
+            if (headProgress != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                headProgress.write(out);
+                out.close();
+                state.headProgress = bytes.toByteArray();
+            }
+            state.queue = queue.getState(linkDirectory);
+            return state;
+        } finally {
+            queue.resume();
+        }
+    }
+
+    public void mine() {
+        mine(null, null);
+    }
+
+    // Mine, continuing from the checkpointed state in resumeDirectory if resume is not null.
+    public void mine(MinerState resume, File resumeDirectory) {
+        LOGGER.info("Mining.");
+        Checkpointer checkpointer = null;
+        if (config.checkpointDirectory != null) {
+            checkpointer = new Checkpointer(this, new File(config.checkpointDirectory), config.checkpointInterval);
+            checkpointer.start();
+        }
+        if (resume != null) {
+            resumedOutputLines = resume.outputLines;
+        }
+        int[] heads = parseHeads(config.targetHeads, knowledgeGraph.relationsStringMap, knowledgeGraph.nRelations);
+        if (config.numHeadPartitions > 0) {
+            if (heads == null) {
+                heads = new int[knowledgeGraph.nRelations];
+                for (int i = 0; i < heads.length; ++i) {
+                    heads[i] = i;
+                }
+            }
+            int[] factCounts = new int[knowledgeGraph.nRelations];
+            for (int i = 0; i < factCounts.length; ++i) {
+                factCounts[i] = knowledgeGraph.pidSOInstances[i].size();
+            }
+            List<int[]> partitions = partitionHeads(heads, factCounts, config.numHeadPartitions);
+            for (int i = resume == null ? 0 : resume.partition; i < partitions.size(); ++i) {
+                currentPartition = i;
+                if (resume != null && i == resume.partition) {
+                    mineHeads(partitions.get(i), resume, resumeDirectory);
+                } else {
+                    mineHeads(partitions.get(i));
+                }
+                StringBuilder finished = new StringBuilder();
+                for (int pid : partitions.get(i)) {
+                    finished.append(" ").append(knowledgeGraph.relationsString[pid]);
+                }
+                LOGGER.info("Finished head partition " + (i + 1) + "/" + partitions.size() + ":" + finished);
+            }
+        } else {
+            mineHeads(heads, resume, resumeDirectory);
+        }
+        if (checkpointer != null) {
+            checkpointer.stop();
+        }
+        if (output != null) {
+            output.close();
+        }
+        if (sweep != null) {
+            sweep.close();
+        }
+        close();
+    }
+
+    // Release the evaluation cache, and save the rank cache next to it.
+    public void close() {
+        if (evaluationCache != null) {
+            evaluationCache.close();
+            evaluationCache = null;
+        }
+        if (embeddingClient != null) {
+            LOGGER.info(embeddingClient.getRankCache().getStatistics() + " Coalesced rank requests: " + embeddingClient
+                    .getCoalescedRanks() + ".");
+            if (embeddingClient.getScoreProfiles().getMemory() > 0) {
+                LOGGER.info(embeddingClient.getScoreProfiles().getStatistics());
+            }
+        }
+        if (rankCacheFile != null) {
+            try {
+                embeddingClient.saveRankCache(rankCacheFile, rankCacheChecksum);
+            } catch (IOException e) {
+                LOGGER.warning("Cannot save rank cache: " + e.getMessage());
+            }
+            rankCacheFile = null;
+        }
     }
 }
@@ -8,6 +8,12 @@ public class MinerConfig {
 
     // Embedding.
     public String embeddingModel = "transe";
+    // If true, embeddings are stored in float precision, which halves their memory at the cost of slightly different
+    // ranks.
+    public boolean floatEmbedding = false;
+    // If not negative, ranks are counted with an index of the entities, which gives inverted ranks off by at most this
+    // error (exact ranks for 0) without scoring all entities.
+    public double embeddingIndexError = -1;
 
     // Language bias.
     public int maxNumVariables = 3;
@@ -33,6 +39,42 @@ public class MinerConfig {
     public int enqueueLimit = 100000000;
     public int numWorkers = 8;
     public boolean xyz = false;
+    // Comma-separated head predicates (names or ids) to mine, null for all.
+    public String targetHeads = null;
+    // If positive, heads are mined in this many independent searches, each with its own queue.
+    public int numHeadPartitions = 0;
+    // If positive, queued rules beyond this many megabytes are spilled to disk, in spillDirectory (null for the system
+    // temporary directory).
+    public int frontierMemoryBudget = 0;
+    public String spillDirectory = null;
+    // Best-first search: the queued rules with the highest bound of the scr they and their extensions can reach are
+    // matched first. Mining stops after deadline seconds (0 for no deadline), or, with best-first and positive topK,
+    // once the top-k rules of every head are final.
+    public boolean bestFirst = false;
+    public int deadline = 0;
+    public int topK = 0;
+    // If not null, the search state is saved to this directory every checkpointInterval seconds.
+    public String checkpointDirectory = null;
+    public int checkpointInterval = 600;
+    // If not null, evaluations of rule bodies are cached in this directory and reused by later runs on the same graph.
+    public String evaluationCacheDirectory = null;
+    // Memory budget in megabytes of the cache of the ranks of facts by the embedding, saved to the evaluation cache
+    // directory if set, for later runs on the same embedding.
+    public int rankCacheMemory = 64;
+    // Memory budget in megabytes of the sorted scores of the candidates of (subject, predicate) and (predicate, object)
+    // pairs ranked again, their ranks are then binary searches. 0 disables them.
+    public int scoreProfileMemory = 0;
+    // Format of the output ('tsv', 'jsonl' or 'binary'), results are printed to the console as well if echoResults.
+    public String outputFormat = "tsv";
+    public boolean echoResults = false;
+    // A tsv output is also sorted by decreasing scr within sortMemoryBudget megabytes, keeping the first sortedTopK
+    // rules of each head if positive.
+    public int sortedTopK = 0;
+    public int sortMemoryBudget = 256;
+    // If positive, the best leaderboardSize results of each head are kept while mining. With capOutput, only they are
+    // written to the output, at the end.
+    public int leaderboardSize = 0;
+    public boolean capOutput = false;
 
     // Scoring options.
     public double embeddingWeight = 0.3;
@@ -42,6 +84,8 @@ public class MinerConfig {
     public void printConfig() {
         System.out.println("---------------MinerConfig---------------");
         System.out.println("embeddingModel=" + embeddingModel);
+        System.out.println("floatEmbedding=" + floatEmbedding);
+        System.out.println("embeddingIndexError=" + embeddingIndexError);
         System.out.println("minConfidence=" + minConf);
         System.out.println("minSupport=" + minSupport);
         System.out.println("maxNumVariables=" + maxNumVariables);
@@ -60,6 +104,24 @@ public class MinerConfig {
         System.out.println("usePCAConf=" + usePCAConf);
         System.out.println("numWorkers=" + numWorkers);
         System.out.println("xyz=" + xyz);
+        System.out.println("targetHeads=" + targetHeads);
+        System.out.println("numHeadPartitions=" + numHeadPartitions);
+        System.out.println("frontierMemoryBudget=" + frontierMemoryBudget);
+        System.out.println("spillDirectory=" + spillDirectory);
+        System.out.println("bestFirst=" + bestFirst);
+        System.out.println("deadline=" + deadline);
+        System.out.println("topK=" + topK);
+        System.out.println("checkpointDirectory=" + checkpointDirectory);
+        System.out.println("checkpointInterval=" + checkpointInterval);
+        System.out.println("evaluationCacheDirectory=" + evaluationCacheDirectory);
+        System.out.println("rankCacheMemory=" + rankCacheMemory);
+        System.out.println("scoreProfileMemory=" + scoreProfileMemory);
+        System.out.println("outputFormat=" + outputFormat);
+        System.out.println("echoResults=" + echoResults);
+        System.out.println("sortedTopK=" + sortedTopK);
+        System.out.println("sortMemoryBudget=" + sortMemoryBudget);
+        System.out.println("leaderboardSize=" + leaderboardSize);
+        System.out.println("capOutput=" + capOutput);
         System.out.println("-----------------------------------------");
         System.out.println("-----------------------------------------");
     }
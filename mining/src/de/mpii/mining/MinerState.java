@@ -0,0 +1,52 @@
+package de.mpii.mining;
+
+import de.mpii.mining.rule.RuleQueue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * State of a mining run between two processed rules, from which the run can be resumed.
+ */
+public class MinerState {
+    private static final int VERSION = 2;
+
+    // Index of the head partition being mined, 0 if heads are not partitioned.
+    public int partition;
+    public int matchedRule;
+    // Number of result lines written to the output.
+    public long outputLines;
+    // Serialized HeadProgress, null if not used.
+    public byte[] headProgress;
+    public RuleQueue.State queue;
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(partition);
+        out.writeInt(matchedRule);
+        out.writeLong(outputLines);
+        out.writeInt(headProgress == null ? -1 : headProgress.length);
+        if (headProgress != null) {
+            out.write(headProgress);
+        }
+        queue.write(out);
+    }
+
+    public static MinerState read(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported checkpoint version.");
+        }
+        MinerState state = new MinerState();
+        state.partition = in.readInt();
+        state.matchedRule = in.readInt();
+        state.outputLines = in.readLong();
+        int length = in.readInt();
+        if (length >= 0) {
+            state.headProgress = new byte[length];
+            in.readFully(state.headProgress);
+        }
+        state.queue = RuleQueue.State.read(in);
+        return state;
+    }
+}
@@ -0,0 +1,106 @@
+package de.mpii.mining;
+
+import de.mpii.embedding.EmbeddingClient;
+import de.mpii.embedding.HolEClient;
+import de.mpii.embedding.SSPClient;
+import de.mpii.embedding.TransEClient;
+import de.mpii.mining.graph.KnowledgeGraph;
+import de.mpii.mining.output.RuleSink;
+import de.mpii.mining.rule.EvaluationCache;
+import de.mpii.mining.rule.Rule;
+import de.mpii.mining.rule.SOInstance;
+import de.mpii.util.Infer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Knowledge graph and embedding clients of a workspace, loaded once and shared by the jobs run on it.
+ * <p>
+ * The graph is loaded with the session and embedding clients on first use. Neither is modified by mining, their
+ * caches are concurrent, so any number of miners and inferences may use the session at the same time.
+ */
+public class MiningSession {
+    public final String workspace;
+    public final KnowledgeGraph knowledgeGraph;
+
+    // Keyed by lower-case model name, followed by "/float" for float precision and "/index=" and the max error of ranks
+    // for indexed clients.
+    private HashMap<String, EmbeddingClient> embeddingClients = new HashMap<>();
+    private HashMap<String, Long> embeddingChecksums = new HashMap<>();
+    private long graphChecksum = -1;
+
+    public MiningSession(String workspace) {
+        this.workspace = workspace;
+        knowledgeGraph = new KnowledgeGraph(workspace);
+    }
+
+    // Clients of an index error which is not negative count ranks with an index of the entities, with that error.
+    public synchronized EmbeddingClient getEmbeddingClient(String model, boolean floatPrecision, double indexError) {
+        String name = model.toLowerCase();
+        String key = getEmbeddingKey(name, floatPrecision, indexError);
+        EmbeddingClient client = embeddingClients.get(key);
+        if (client == null) {
+            if (name.equals("transe")) {
+                client = new TransEClient(workspace, "L1", floatPrecision);
+            } else if (name.equals("hole")) {
+                client = new HolEClient(workspace, floatPrecision);
+            } else if (name.equals("ssp")) {
+                client = new SSPClient(workspace, floatPrecision);
+            } else {
+                throw new RuntimeException("Invalid embedding model");
+            }
+            if (indexError >= 0) {
+                client.loadIndex(new File(workspace + "/" + name), indexError);
+            }
+            embeddingClients.put(key, client);
+        }
+        return client;
+    }
+
+    // Checksums identifying the graph and the embedding model in evaluation caches.
+    public synchronized long getGraphChecksum() throws IOException {
+        if (graphChecksum == -1) {
+            graphChecksum = EvaluationCache.checksum(workspace + "/meta.txt", workspace + "/train.txt");
+        }
+        return graphChecksum;
+    }
+
+    private static String getEmbeddingKey(String name, boolean floatPrecision, double indexError) {
+        String key = floatPrecision ? name + "/float" : name;
+        return indexError >= 0 ? key + "/index=" + indexError : key;
+    }
+
+    public synchronized long getEmbeddingChecksum(String model, boolean floatPrecision, double indexError) throws
+            IOException {
+        String name = model.toLowerCase();
+        String key = getEmbeddingKey(name, floatPrecision, indexError);
+        Long checksum = embeddingChecksums.get(key);
+        if (checksum == null) {
+            checksum = EvaluationCache.checksum(workspace + "/meta.txt", workspace + "/train.txt", workspace +
+                    "/ideal.data.txt", workspace + "/" + name);
+            if (floatPrecision) {
+                // Checksums fit in 32 bits, float embeddings give other ranks.
+                checksum |= 1L << 32;
+            }
+            if (indexError > 0) {
+                // Approximate ranks depend on their max error.
+                checksum ^= (long) Double.hashCode(indexError) << 33;
+            }
+            embeddingChecksums.put(key, checksum);
+        }
+        return checksum;
+    }
+
+    public Miner newMiner(MinerConfig config, RuleSink output) {
+        return new Miner(this, config, output);
+    }
+
+    // Instances of the head of the rule, given in the format of the mining output, inferred from the graph.
+    public HashSet<SOInstance> infer(String ruleString) {
+        Rule r = Infer.parseRule(knowledgeGraph, ruleString);
+        return Infer.matchRule(knowledgeGraph, r, false);
+    }
+}
@@ -0,0 +1,230 @@
+package de.mpii.mining.distributed;
+
+import de.mpii.mining.Miner;
+import de.mpii.mining.MinerConfig;
+import de.mpii.mining.graph.KnowledgeGraph;
+import de.mpii.mining.output.RuleResult;
+import de.mpii.mining.output.RuleSink;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Hands out head partitions to {@link MiningWorker} processes over sockets and merges their results into one output.
+ * <p>
+ * Protocol (line based): the coordinator sends "TASK id pid,pid,..." or "STOP". The worker answers with the result
+ * lines of the task (measures in full precision), then "DONE id". Meanwhile, the worker sends an empty line every
+ * HEARTBEAT_INTERVAL ms. A worker which sends nothing for HEARTBEAT_TIMEOUT ms is failed like a closed connection,
+ * even if it hangs with its socket open. Results of a task are spilled to a file of the task and only written when the
+ * task is done, so a task of a failed worker is re-assigned without leaving partial or duplicated output.
+ */
+public class MiningCoordinator {
+    public static final Logger LOGGER = Logger.getLogger(MiningCoordinator.class.getName());
+
+    static final String TASK = "TASK";
+    static final String DONE = "DONE";
+    static final String STOP = "STOP";
+    static final int HEARTBEAT_INTERVAL = 10000;
+    static final int HEARTBEAT_TIMEOUT = 60000;
+
+    private List<int[]> partitions;
+    private String[] relationsString;
+    private HashMap<String, Integer> relationsStringMap;
+    private RuleSink output;
+    // Directory of the spilled results of running tasks, null for the system temporary directory.
+    private File spillDirectory;
+
+    private final Object lock = new Object();
+    private LinkedList<Integer> pendingTasks;
+    private boolean[] finished;
+    private int nFinished;
+
+    public MiningCoordinator(String workspace, MinerConfig config, RuleSink output) {
+        this.output = output;
+        spillDirectory = config.spillDirectory == null ? null : new File(config.spillDirectory);
+        relationsStringMap = new HashMap<>();
+        int[] factCounts;
+        try {
+            BufferedReader metaIn = new BufferedReader(new InputStreamReader(new FileInputStream(new File(workspace +
+                    "/meta.txt"))));
+            String[] spl = metaIn.readLine().split("\\s++");
+            int nEntities = Integer.parseInt(spl[0]), nRelations = Integer.parseInt(spl[1]);
+            for (int i = 0; i < nEntities; ++i) {
+                metaIn.readLine();
+            }
+            relationsString = new String[nRelations];
+            for (int i = 0; i < nRelations; ++i) {
+                relationsString[i] = metaIn.readLine();
+                relationsStringMap.put(relationsString[i], i);
+            }
+            metaIn.close();
+
+            // Facts are counted once like in the graph of the workers, which balances partitions by its instances.
+            factCounts = new int[nRelations];
+            KnowledgeGraph.FactEncodedSet facts = new KnowledgeGraph.FactEncodedSet();
+            BufferedReader factIn = new BufferedReader(new InputStreamReader(new FileInputStream(new File(workspace +
+                    "/train.txt"))));
+            String line;
+            while ((line = factIn.readLine()) != null) {
+                spl = line.trim().split("\\s++");
+                if (spl.length < 3) {
+                    continue;
+                }
+                int p = Integer.parseInt(spl[1]);
+                if (facts.addFact(Integer.parseInt(spl[0]), p, Integer.parseInt(spl[2]))) {
+                    ++factCounts[p];
+                }
+            }
+            factIn.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        int[] heads = Miner.parseHeads(config.targetHeads, relationsStringMap, relationsString.length);
+        if (heads == null) {
+            heads = new int[relationsString.length];
+            for (int i = 0; i < heads.length; ++i) {
+                heads[i] = i;
+            }
+        }
+        partitions = Miner.partitionHeads(heads, factCounts, config.numHeadPartitions);
+        pendingTasks = new LinkedList<>();
+        for (int i = 0; i < partitions.size(); ++i) {
+            pendingTasks.add(i);
+        }
+        finished = new boolean[partitions.size()];
+        nFinished = 0;
+    }
+
+    // Returns the next task to assign, or -1 if all tasks are finished. Waits while all remaining tasks are assigned,
+    // since they might be re-assigned later.
+    private int takeTask() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (nFinished == partitions.size()) {
+                    return -1;
+                }
+                if (!pendingTasks.isEmpty()) {
+                    return pendingTasks.poll();
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void failTask(int task) {
+        synchronized (lock) {
+            if (!finished[task]) {
+                LOGGER.warning("Re-assigning task " + task + ".");
+                pendingTasks.addFirst(task);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void finishTask(int task, File results) throws IOException {
+        synchronized (lock) {
+            if (finished[task]) {
+                return;
+            }
+            // Partitions do not share heads, so results of different tasks are never duplicated.
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(results), "UTF-8"))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    output.accept(RuleResult.fromTsv(line, relationsStringMap));
+                }
+            }
+            finished[task] = true;
+            ++nFinished;
+            StringBuilder heads = new StringBuilder();
+            for (int pid : partitions.get(task)) {
+                heads.append(" ").append(relationsString[pid]);
+            }
+            LOGGER.info("Finished task " + (task + 1) + "/" + partitions.size() + ":" + heads);
+            lock.notifyAll();
+        }
+    }
+
+    private void serve(Socket socket) {
+        int task = -1;
+        File results = null;
+        try {
+            socket.setSoTimeout(HEARTBEAT_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            LOGGER.info("Worker connected: " + socket.getRemoteSocketAddress());
+            while ((task = takeTask()) != -1) {
+                StringBuilder message = new StringBuilder(TASK).append(" ").append(task).append(" ");
+                int[] heads = partitions.get(task);
+                for (int i = 0; i < heads.length; ++i) {
+                    message.append(i > 0 ? "," : "").append(heads[i]);
+                }
+                out.println(message);
+                out.flush();
+
+                results = File.createTempFile("task-" + task + "-", ".tsv", spillDirectory);
+                String line;
+                try (BufferedWriter resultsOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream
+                        (results), "UTF-8"))) {
+                    while ((line = in.readLine()) != null && !line.startsWith(DONE + " ")) {
+                        if (!line.isEmpty()) {
+                            resultsOut.write(line);
+                            resultsOut.newLine();
+                        }
+                    }
+                }
+                if (line == null || !line.equals(DONE + " " + task)) {
+                    throw new IOException("Connection to worker lost.");
+                }
+                finishTask(task, results);
+                results.delete();
+                results = null;
+                task = -1;
+            }
+            out.println(STOP);
+            out.flush();
+        } catch (Exception e) {
+            LOGGER.warning("Worker " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            if (task != -1) {
+                failTask(task);
+            }
+        } finally {
+            if (results != null) {
+                results.delete();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public void run(int port) {
+        LOGGER.info("Coordinating " + partitions.size() + " tasks on port " + port + ".");
+        try (ServerSocket server = new ServerSocket(port)) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        new Thread(() -> serve(socket)).start();
+                    } catch (IOException e) {
+                        // Server socket closed.
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            synchronized (lock) {
+                while (nFinished < partitions.size()) {
+                    lock.wait();
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        output.close();
+    }
+}
@@ -0,0 +1,87 @@
+package de.mpii.mining.distributed;
+
+import de.mpii.mining.Miner;
+import de.mpii.mining.MinerConfig;
+import de.mpii.mining.output.AsyncRuleSink;
+import de.mpii.mining.output.ResultEncoder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+/**
+ * Mining process which loads the graph once and mines the head partitions given by a {@link MiningCoordinator}.
+ */
+public class MiningWorker {
+    public static final Logger LOGGER = Logger.getLogger(MiningWorker.class.getName());
+
+    private String workspace;
+    private MinerConfig config;
+
+    public MiningWorker(String workspace, MinerConfig config) {
+        this.workspace = workspace;
+        this.config = config;
+    }
+
+    public void run(String host, int port) {
+        try (Socket socket = new Socket(host, port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            // Results are sent as lines of the usual output format with the measures in full precision, whatever the
+            // output format of the coordinator. Everything is written by the sink, so that heartbeats and task ends
+            // never cut a result line.
+            AsyncRuleSink sink = new AsyncRuleSink(socket.getOutputStream(), new ResultEncoder.TsvEncoder(true),
+                    config.echoResults);
+            Thread heartbeat = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(MiningCoordinator.HEARTBEAT_INTERVAL);
+                        sink.send(new byte[]{'\n'});
+                    }
+                } catch (Exception e) {
+                    // Interrupted at shutdown, or the connection is lost.
+                }
+            });
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+            // Evaluations of rule bodies do not depend on the heads, so the tasks of the worker share them through
+            // the evaluation cache, a temporary one if none is given.
+            File cacheDirectory = null;
+            if (config.evaluationCacheDirectory == null) {
+                cacheDirectory = config.spillDirectory == null ? Files.createTempDirectory("worker-cache").toFile() :
+                        Files.createTempDirectory(new File(config.spillDirectory).toPath(), "worker-cache").toFile();
+                config.evaluationCacheDirectory = cacheDirectory.getPath();
+            }
+            Miner miner = new Miner(workspace, config, sink);
+            LOGGER.info("Connected to coordinator " + host + ":" + port + ".");
+            String line;
+            while ((line = in.readLine()) != null && line.startsWith(MiningCoordinator.TASK)) {
+                String[] spl = line.split(" ");
+                String[] pids = spl[2].split(",");
+                int[] heads = new int[pids.length];
+                for (int i = 0; i < heads.length; ++i) {
+                    heads[i] = Integer.parseInt(pids[i]);
+                }
+                LOGGER.info("Mining task " + spl[1] + ".");
+                miner.mineHeads(heads);
+                sink.send((MiningCoordinator.DONE + " " + spl[1] + "\n").getBytes(StandardCharsets.UTF_8));
+                sink.flush();
+            }
+            heartbeat.interrupt();
+            miner.close();
+            sink.close();
+            if (cacheDirectory != null) {
+                for (File file : cacheDirectory.listFiles()) {
+                    file.delete();
+                }
+                cacheDirectory.delete();
+            }
+            LOGGER.info("Worker is shutting down.");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
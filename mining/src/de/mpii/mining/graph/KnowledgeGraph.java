@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -28,9 +29,15 @@ public class KnowledgeGraph {
     public HashMap<Integer, Integer> maxVarPids;
     public HashSet<Integer>[] danglingPids;
     public double[] rSupport;
+    // Average number of objects per subject, and of subjects per object, of each predicate.
+    public double[] subjectFanout, objectFanout;
 
     public HashMap<Integer, Integer> pid1Pid2Count, pid1Pid2CountReversed; // handle disjunction
 
+    // For each head pid, number of its facts (s, o) connected by a 2-hop path s -p1- m -p2- o, keyed by
+    // encodePath(p1, p2). Negative pids are reversed edges, as in OutgoingEdge. Computed lazily.
+    private ConcurrentHashMap<Integer, HashMap<Long, Integer>> headPathCount = new ConcurrentHashMap<>();
+
     public KnowledgeGraph(String workspace) {
         LOGGER.info("Loading knowledge graph from '" + workspace + "'.");
         String[] spl;
@@ -48,6 +55,8 @@ public class KnowledgeGraph {
 
             pidSOInstances = new List[nRelations];
             rSupport = new double[nRelations];
+            subjectFanout = new double[nRelations];
+            objectFanout = new double[nRelations];
             typeInstances = new List[nTypes];
 
             trueTypes = new TypeEncodedSet();
@@ -141,6 +150,8 @@ public class KnowledgeGraph {
                     distinctO.add(so.object);
                 }
                 rSupport[i] = ((double) pidSOInstances[i].size()) / distinctS.size() / distinctO.size();
+                subjectFanout[i] = distinctS.isEmpty() ? 0 : ((double) pidSOInstances[i].size()) / distinctS.size();
+                objectFanout[i] = distinctO.isEmpty() ? 0 : ((double) pidSOInstances[i].size()) / distinctO.size();
             }
 
             pid1Pid2Count = new HashMap<>();
@@ -222,6 +233,93 @@ public class KnowledgeGraph {
         return soPidMap.get(encodeSO(subject, object));
     }
 
+    // Number of pairs (s, o) such that pid1(s, o) and pid2(s, o).
+    public int getCoOccurrenceCount(int pid1, int pid2) {
+        if (pid1 == pid2) {
+            return pidSOInstances[pid1].size();
+        }
+        return pid1Pid2Count.getOrDefault(Math.min(pid1, pid2) * nRelations + Math.max(pid1, pid2), 0);
+    }
+
+    // Number of pairs (s, o) such that pid1(s, o) and pid2(o, s).
+    public int getReversedCoOccurrenceCount(int pid1, int pid2) {
+        if (pid1 == pid2) {
+            // Not collected.
+            return pidSOInstances[pid1].size();
+        }
+        return pid1Pid2CountReversed.getOrDefault(Math.min(pid1, pid2) * nRelations + Math.max(pid1, pid2), 0);
+    }
+
+    // Number of facts head(s, o) for which there is a middle entity m (different from s and o) with pid1 linking s
+    // to m and pid2 linking m to o. Negative pids are reversed edges.
+    public int getPathCount(int head, int pid1, int pid2) {
+        HashMap<Long, Integer> pathCount = headPathCount.get(head);
+        if (pathCount == null) {
+            pathCount = headPathCount.computeIfAbsent(head, h -> computePathCount(h));
+        }
+        return pathCount.getOrDefault(encodePath(pid1, pid2), 0);
+    }
+
+    private long encodePath(int pid1, int pid2) {
+        return ((long) pid1 + nRelations) * (2 * nRelations) + pid2 + nRelations;
+    }
+
+    private HashMap<Long, Integer> computePathCount(int head) {
+        HashMap<Long, Integer> pathCount = new HashMap<>();
+        HashSet<Long> paths = new HashSet<>();
+        for (SOInstance so : pidSOInstances[head]) {
+            int s = so.subject, o = so.object;
+            if (s == o) {
+                continue;
+            }
+            paths.clear();
+            // Enumerate middle entities from the endpoint having less edges.
+            if (outEdges[s].size() <= outEdges[o].size()) {
+                for (OutgoingEdge e : outEdges[s]) {
+                    int m = e.oid;
+                    if (m == s || m == o) {
+                        continue;
+                    }
+                    List<Integer> pids = getPidList(m, o);
+                    if (pids != null) {
+                        for (int p : pids) {
+                            paths.add(encodePath(e.pid, p));
+                        }
+                    }
+                    pids = getPidList(o, m);
+                    if (pids != null) {
+                        for (int p : pids) {
+                            paths.add(encodePath(e.pid, -p - 1));
+                        }
+                    }
+                }
+            } else {
+                for (OutgoingEdge e : outEdges[o]) {
+                    int m = e.oid;
+                    if (m == s || m == o) {
+                        continue;
+                    }
+                    List<Integer> pids = getPidList(s, m);
+                    if (pids != null) {
+                        for (int p : pids) {
+                            paths.add(encodePath(p, -e.pid - 1));
+                        }
+                    }
+                    pids = getPidList(m, s);
+                    if (pids != null) {
+                        for (int p : pids) {
+                            paths.add(encodePath(-p - 1, -e.pid - 1));
+                        }
+                    }
+                }
+            }
+            for (long path : paths) {
+                pathCount.put(path, pathCount.getOrDefault(path, 0) + 1);
+            }
+        }
+        return pathCount;
+    }
+
     public static class OutgoingEdge {
         // Reversed edges will have pid negative.
         public int pid, oid;
@@ -0,0 +1,198 @@
+package de.mpii.mining.output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * Sink writing results on its own thread, in batches and without flushing after each of them.
+ * <p>
+ * Workers only enqueue results. The queue is bounded, so workers wait when they produce results faster than they are
+ * written instead of buffering them without limit.
+ */
+public class AsyncRuleSink implements RuleSink, Runnable {
+    public static final Logger LOGGER = Logger.getLogger(AsyncRuleSink.class.getName());
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 1024;
+
+    // Request to the writer thread: results before it in the queue are written out, followed by data if not null, and
+    // flushed when it is taken. The writer thread ends at a stop request.
+    private static class FlushRequest {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean stop;
+        byte[] data;
+    }
+
+    // Element of the queue, either a result or a flush request.
+    private static class Message {
+        RuleResult result;
+        FlushRequest request;
+
+        Message(RuleResult result, FlushRequest request) {
+            this.result = result;
+            this.request = request;
+        }
+    }
+
+    private BlockingQueue<Message> queue;
+    private DataOutputStream out;
+    private ResultEncoder encoder;
+    // If true, results are also printed to the console.
+    private boolean echo;
+    private volatile long count = 0;
+    // First error of the writer thread, from the output or the encoder. Later results are dropped, but the queue is
+    // still drained so that workers and flushes do not wait forever.
+    private volatile Throwable error = null;
+    private boolean closed = false;
+
+    public AsyncRuleSink(OutputStream out, ResultEncoder encoder, boolean echo) {
+        this(out, encoder, echo, DEFAULT_CAPACITY);
+    }
+
+    public AsyncRuleSink(OutputStream out, ResultEncoder encoder, boolean echo, int capacity) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.encoder = encoder;
+        this.echo = echo;
+        queue = new ArrayBlockingQueue<>(capacity);
+        Thread thread = new Thread(this, "RuleSink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void checkError() {
+        if (error != null) {
+            throw new RuntimeException("Cannot write results.", error);
+        }
+    }
+
+    private void put(Message message) {
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void accept(RuleResult result) {
+        checkError();
+        put(new Message(result, null));
+    }
+
+    private void request(boolean stop) {
+        FlushRequest request = new FlushRequest();
+        request.stop = stop;
+        put(new Message(null, request));
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        checkError();
+    }
+
+    @Override
+    public void flush() {
+        request(false);
+    }
+
+    // Write the data after the results accepted so far and flush, without waiting for it. The data is not counted as a
+    // result.
+    public void send(byte[] data) {
+        checkError();
+        FlushRequest request = new FlushRequest();
+        request.data = data;
+        put(new Message(null, request));
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            request(true);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.warning("Cannot close output: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder echoed = new StringBuilder();
+        while (true) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            for (Message message : batch) {
+                if (message.request != null) {
+                    FlushRequest request = message.request;
+                    printEcho(echoed);
+                    try {
+                        if (error == null) {
+                            if (request.data != null) {
+                                out.write(request.data);
+                            }
+                            out.flush();
+                        }
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    request.done.countDown();
+                    if (request.stop) {
+                        return;
+                    }
+                    continue;
+                }
+                if (error != null) {
+                    continue;
+                }
+                RuleResult result = message.result;
+                try {
+                    encoder.encode(result, out);
+                    ++count;
+                    if (echo) {
+                        echoed.append(result.toTsv()).append('\n');
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                    LOGGER.severe("Cannot write results: " + e);
+                }
+            }
+            printEcho(echoed);
+        }
+    }
+
+    private static void printEcho(StringBuilder echoed) {
+        if (echoed.length() > 0) {
+            System.out.print(echoed);
+            System.out.flush();
+            echoed.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.mpii.mining.output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The k results of highest scr of each head seen so far.
+ * <p>
+ * The top of a head is an immutable array sorted by decreasing scr, replaced by compare-and-set, so workers never
+ * block each other and snapshots are taken without stopping them. A result below a full top is rejected without
+ * allocating.
+ */
+public class Leaderboard {
+    private int k;
+    private ConcurrentHashMap<Integer, AtomicReference<RuleResult[]>> tops = new ConcurrentHashMap<>();
+
+    public Leaderboard(int k) {
+        this.k = k;
+    }
+
+    // Return true if the result enters the top-k of its head.
+    public boolean offer(RuleResult result) {
+        AtomicReference<RuleResult[]> ref = tops.get(result.head);
+        if (ref == null) {
+            ref = tops.computeIfAbsent(result.head, pid -> new AtomicReference<>(new RuleResult[0]));
+        }
+        while (true) {
+            RuleResult[] top = ref.get();
+            if (top.length == k && result.scr <= top[k - 1].scr) {
+                return false;
+            }
+            // Results of the same scr keep their arrival order.
+            int pos = top.length;
+            while (pos > 0 && top[pos - 1].scr < result.scr) {
+                --pos;
+            }
+            int n = Math.min(top.length + 1, k);
+            RuleResult[] updated = new RuleResult[n];
+            System.arraycopy(top, 0, updated, 0, pos);
+            updated[pos] = result;
+            System.arraycopy(top, pos, updated, pos + 1, n - pos - 1);
+            if (ref.compareAndSet(top, updated)) {
+                return true;
+            }
+        }
+    }
+
+    // Current top results, by head pid and then by decreasing scr.
+    public List<RuleResult> snapshot() {
+        TreeMap<Integer, RuleResult[]> sorted = new TreeMap<>();
+        for (Integer pid : tops.keySet()) {
+            sorted.put(pid, tops.get(pid).get());
+        }
+        List<RuleResult> results = new ArrayList<>();
+        for (RuleResult[] top : sorted.values()) {
+            for (RuleResult result : top) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+}
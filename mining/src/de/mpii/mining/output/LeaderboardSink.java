@@ -0,0 +1,106 @@
+package de.mpii.mining.output;
+
+import de.mpii.util.AtomicFile;
+
+import java.io.*;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Sink keeping a {@link Leaderboard} of the results passed to its output.
+ * <p>
+ * While mining, creating the trigger file makes the sink write the current leaderboard to the snapshot file, in the
+ * usual output format, and delete the trigger file. The final leaderboard is written when the sink is closed. If
+ * capOutput is true, the output only receives the final leaderboard instead of every result.
+ */
+public class LeaderboardSink implements RuleSink, Runnable {
+    public static final Logger LOGGER = Logger.getLogger(LeaderboardSink.class.getName());
+
+    private static final long POLL_INTERVAL = 1000;
+
+    private RuleSink output;
+    private Leaderboard leaderboard;
+    private boolean capOutput;
+    private File snapshotFile, triggerFile;
+    private Thread thread;
+    private boolean closed = false;
+
+    public LeaderboardSink(RuleSink output, int k, boolean capOutput, File snapshotFile, File triggerFile) {
+        this.output = output;
+        leaderboard = new Leaderboard(k);
+        this.capOutput = capOutput;
+        this.snapshotFile = snapshotFile;
+        this.triggerFile = triggerFile;
+        thread = new Thread(this, "LeaderboardSnapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void accept(RuleResult result) {
+        leaderboard.offer(result);
+        if (!capOutput) {
+            output.accept(result);
+        }
+    }
+
+    @Override
+    public void flush() {
+        output.flush();
+    }
+
+    @Override
+    public long getCount() {
+        return output.getCount();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+        if (capOutput) {
+            for (RuleResult result : leaderboard.snapshot()) {
+                output.accept(result);
+            }
+        }
+        output.close();
+        writeSnapshot();
+    }
+
+    private void writeSnapshot() {
+        try {
+            List<RuleResult> snapshot = leaderboard.snapshot();
+            ResultEncoder encoder = new ResultEncoder.TsvEncoder();
+            AtomicFile.write(snapshotFile, out -> {
+                for (RuleResult result : snapshot) {
+                    encoder.encode(result, out);
+                }
+            });
+            LOGGER.info("Leaderboard of " + snapshot.size() + " rules written to " + snapshotFile.getPath() + ".");
+        } catch (IOException e) {
+            LOGGER.warning("Cannot write leaderboard: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (triggerFile.exists()) {
+                writeSnapshot();
+                triggerFile.delete();
+            }
+        }
+    }
+}
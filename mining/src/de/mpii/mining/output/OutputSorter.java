@@ -0,0 +1,198 @@
+package de.mpii.mining.output;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Sorts an output of usual result lines by decreasing scr, keeping only the first topK rules of each head if topK is
+ * positive.
+ * <p>
+ * Lines are read in runs that fit the memory budget, each run is sorted and spilled to a temporary file, then the runs
+ * are merged, at most MAX_FAN_IN at a time. Rules of the same scr keep their order in the output.
+ */
+public class OutputSorter {
+    public static final Logger LOGGER = Logger.getLogger(OutputSorter.class.getName());
+
+    private static final int SCR_COLUMN = 8;
+    private static final int MAX_FAN_IN = 64;
+    // Rough heap size of a line besides its characters.
+    private static final int LINE_OVERHEAD = 96;
+
+    private static class Line {
+        String text;
+        String head;
+        double scr;
+
+        Line(String text) {
+            this.text = text;
+            String[] spl = text.split("\t", SCR_COLUMN + 2);
+            scr = Double.parseDouble(spl[SCR_COLUMN]);
+            int bodyStart = spl[0].indexOf(" :- ");
+            head = bodyStart == -1 ? spl[0] : spl[0].substring(0, bodyStart);
+        }
+
+        long getMemorySize() {
+            return LINE_OVERHEAD + 2L * (text.length() + head.length());
+        }
+    }
+
+    // Sorted run being merged, index is the position of the run in the output.
+    private static class Run {
+        BufferedReader in;
+        Line current;
+        int index;
+
+        Run(File file, int index) throws IOException {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            this.index = index;
+            advance();
+        }
+
+        void advance() throws IOException {
+            String text = in.readLine();
+            current = text == null ? null : new Line(text);
+            if (current == null) {
+                in.close();
+            }
+        }
+    }
+
+    private static final Comparator<Line> LINE_COMPARATOR = new Comparator<Line>() {
+        @Override
+        public int compare(Line o1, Line o2) {
+            return Double.compare(o2.scr, o1.scr);
+        }
+    };
+
+    private long memoryBudget;
+    private int topK;
+    private File tempDirectory;
+
+    // memoryBudget is in bytes, tempDirectory is null for the system temporary directory.
+    public OutputSorter(long memoryBudget, int topK, File tempDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.topK = topK;
+        this.tempDirectory = tempDirectory;
+    }
+
+    // Like the output, input ends at the first empty line.
+    public void sort(File input, File output) throws IOException {
+        List<File> runs = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets
+                .UTF_8));
+        try {
+            ArrayList<Line> lines = new ArrayList<>();
+            long size = 0;
+            String text;
+            while ((text = in.readLine()) != null && !text.isEmpty()) {
+                Line line = new Line(text);
+                lines.add(line);
+                size += line.getMemorySize();
+                if (size >= memoryBudget) {
+                    File run = createRunFile();
+                    runs.add(run);
+                    writeRun(lines, run);
+                    lines.clear();
+                    size = 0;
+                }
+            }
+            if (runs.isEmpty()) {
+                // Everything fits in memory.
+                writeRun(lines, output);
+                return;
+            }
+            if (!lines.isEmpty()) {
+                File run = createRunFile();
+                runs.add(run);
+                writeRun(lines, run);
+            }
+        } finally {
+            in.close();
+        }
+        LOGGER.info("Merging " + runs.size() + " sorted runs of " + input.getPath() + ".");
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                File run = createRunFile();
+                merge(group, run);
+                merged.add(run);
+            }
+            runs = merged;
+        }
+        merge(runs, output);
+    }
+
+    private File createRunFile() throws IOException {
+        File run = File.createTempFile("sort-", ".run", tempDirectory);
+        run.deleteOnExit();
+        return run;
+    }
+
+    private static PrintWriter openWriter(File file) throws IOException {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets
+                .UTF_8), 1 << 16));
+    }
+
+    // Whether the line is among the first topK of its head, counted in counts.
+    private boolean keep(Line line, HashMap<String, Integer> counts) {
+        if (topK <= 0) {
+            return true;
+        }
+        Integer count = counts.get(line.head);
+        count = count == null ? 1 : count + 1;
+        counts.put(line.head, count);
+        return count <= topK;
+    }
+
+    private void writeRun(ArrayList<Line> lines, File file) throws IOException {
+        // Stable, thus ties keep their order.
+        Collections.sort(lines, LINE_COMPARATOR);
+        HashMap<String, Integer> counts = new HashMap<>();
+        PrintWriter out = openWriter(file);
+        for (Line line : lines) {
+            if (keep(line, counts)) {
+                out.print(line.text);
+                out.print('\n');
+            }
+        }
+        out.close();
+    }
+
+    // Merge the runs, given in output order, into file and delete them. Each head keeps its first topK lines, which
+    // include the first topK lines of the head in the merged runs.
+    private void merge(List<File> runFiles, File file) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runFiles.size()), new Comparator<Run>() {
+            @Override
+            public int compare(Run o1, Run o2) {
+                int c = LINE_COMPARATOR.compare(o1.current, o2.current);
+                return c != 0 ? c : Integer.compare(o1.index, o2.index);
+            }
+        });
+        for (int i = 0; i < runFiles.size(); ++i) {
+            Run run = new Run(runFiles.get(i), i);
+            if (run.current != null) {
+                queue.add(run);
+            }
+        }
+        HashMap<String, Integer> counts = new HashMap<>();
+        PrintWriter out = openWriter(file);
+        while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            if (keep(run.current, counts)) {
+                out.print(run.current.text);
+                out.print('\n');
+            }
+            run.advance();
+            if (run.current != null) {
+                queue.add(run);
+            }
+        }
+        out.close();
+        for (File run : runFiles) {
+            run.delete();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package de.mpii.mining.output;
+
+import org.json.simple.JSONObject;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Format of the results written by a sink.
+ */
+public interface ResultEncoder {
+    void encode(RuleResult result, DataOutputStream out) throws IOException;
+
+    // Whether each result is a line, as needed to resume the output from a checkpoint and to sort it.
+    boolean isLineBased();
+
+    // Encoder of the format 'tsv' (the usual output lines), 'jsonl' or 'binary'.
+    static ResultEncoder forFormat(String format) {
+        if (format.equalsIgnoreCase("tsv")) {
+            return new TsvEncoder();
+        } else if (format.equalsIgnoreCase("jsonl")) {
+            return new JsonlEncoder();
+        } else if (format.equalsIgnoreCase("binary")) {
+            return new BinaryEncoder();
+        }
+        throw new RuntimeException("Invalid output format: " + format);
+    }
+
+    class TsvEncoder implements ResultEncoder {
+        // If true, the measures are written in full precision, as RuleResult.fromTsv reads them back exactly.
+        private boolean exact;
+
+        public TsvEncoder() {
+            this(false);
+        }
+
+        public TsvEncoder(boolean exact) {
+            this.exact = exact;
+        }
+
+        @Override
+        public void encode(RuleResult result, DataOutputStream out) throws IOException {
+            out.write(result.toTsv(exact).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+
+        @Override
+        public boolean isLineBased() {
+            return true;
+        }
+    }
+
+    class JsonlEncoder implements ResultEncoder {
+        @Override
+        public void encode(RuleResult result, DataOutputStream out) throws IOException {
+            // Typed map, as JSONObject is a raw HashMap.
+            Map<String, Object> json = new HashMap<>();
+            json.put("rule", result.rule);
+            json.put("head", result.head);
+            json.put("hc", result.headCoverage);
+            json.put(result.usePCAConf ? "pcaconf" : "conf", result.confidence);
+            json.put("mrr", result.mrr);
+            json.put("scr", result.scr);
+            json.put("sup", result.support);
+            json.put("ec", result.ec);
+            out.write(JSONObject.toJSONString(json).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+
+        @Override
+        public boolean isLineBased() {
+            return true;
+        }
+    }
+
+    // Fixed fields after the rule string, measures in full precision.
+    class BinaryEncoder implements ResultEncoder {
+        @Override
+        public void encode(RuleResult result, DataOutputStream out) throws IOException {
+            out.writeUTF(result.rule);
+            out.writeInt(result.head);
+            out.writeDouble(result.headCoverage);
+            out.writeBoolean(result.usePCAConf);
+            out.writeDouble(result.confidence);
+            out.writeDouble(result.mrr);
+            out.writeDouble(result.scr);
+            out.writeInt(result.support);
+            out.writeDouble(result.ec);
+        }
+
+        @Override
+        public boolean isLineBased() {
+            return false;
+        }
+    }
+}
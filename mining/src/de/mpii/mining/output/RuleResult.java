@@ -0,0 +1,73 @@
+package de.mpii.mining.output;
+
+import de.mpii.mining.graph.KnowledgeGraph;
+import de.mpii.mining.rule.Rule;
+
+import java.util.Map;
+
+/**
+ * A mined rule with one of its heads and the measures it is output with.
+ */
+public class RuleResult {
+    public String rule;
+    public int head;
+    public double headCoverage;
+    // Standard or pca confidence, depending on usePCAConf.
+    public double confidence;
+    public boolean usePCAConf;
+    // -1 if the embedding is not used.
+    public double mrr;
+    public double scr;
+    public int support;
+    // -1 if the rule has no exception.
+    public double ec;
+
+    // Result of the matched rule with its i-th head.
+    public static RuleResult of(Rule r, int i, KnowledgeGraph graph, boolean usePCAConf, double mrr, double scr) {
+        RuleResult result = new RuleResult();
+        r.atoms.get(0).pid = r.stats.pids[i];
+        result.rule = r.getString(graph.relationsString, graph.typesString, graph.entitiesString);
+        r.atoms.get(0).pid = -1;
+        result.head = r.stats.pids[i];
+        result.headCoverage = r.stats.headCoverage[i];
+        result.confidence = r.stats.confidence[i];
+        result.usePCAConf = usePCAConf;
+        result.mrr = mrr;
+        result.scr = scr;
+        result.support = r.stats.ruleSupport[i];
+        result.ec = r.stats.ec[i];
+        return result;
+    }
+
+    // Line of the result in the usual output format.
+    public String toTsv() {
+        return toTsv(false);
+    }
+
+    // If exact is true, the measures are written in full precision instead of 3 decimals.
+    public String toTsv(boolean exact) {
+        if (exact) {
+            return rule + "\thc:\t" + headCoverage + "\t" + (usePCAConf ? "pca" : "") + "conf:\t" + confidence +
+                    "\tmrr:\t" + mrr + "\tscr:\t" + scr + "\tsup:\t" + support + "\tec:\t" + ec;
+        }
+        return String.format("%s\thc:\t%.3f\t%sconf:\t%.3f\tmrr:\t%.3f\tscr:\t%.3f\tsup:\t%d\tec:\t%.3f", rule,
+                headCoverage, usePCAConf ? "pca" : "", confidence, mrr, scr, support, ec);
+    }
+
+    // Parse a line of the usual output format, the measures are kept with its precision.
+    public static RuleResult fromTsv(String line, Map<String, Integer> relationsStringMap) {
+        String[] spl = line.split("\t");
+        RuleResult result = new RuleResult();
+        result.rule = spl[0];
+        String headAtom = spl[0].substring(0, spl[0].indexOf(" :- "));
+        result.head = relationsStringMap.get(headAtom.substring(0, headAtom.lastIndexOf('(')));
+        result.headCoverage = Double.parseDouble(spl[2]);
+        result.usePCAConf = spl[3].startsWith("pca");
+        result.confidence = Double.parseDouble(spl[4]);
+        result.mrr = Double.parseDouble(spl[6]);
+        result.scr = Double.parseDouble(spl[8]);
+        result.support = Integer.parseInt(spl[10]);
+        result.ec = Double.parseDouble(spl[12]);
+        return result;
+    }
+}
@@ -0,0 +1,17 @@
+package de.mpii.mining.output;
+
+/**
+ * Consumer of the results of a mining run. Results are accepted concurrently by the mining workers.
+ */
+public interface RuleSink {
+    // May block until the sink can take more results.
+    void accept(RuleResult result);
+
+    // Wait until all results accepted so far are written out.
+    void flush();
+
+    // Number of results written out, all accepted results are counted after flush().
+    long getCount();
+
+    void close();
+}
@@ -0,0 +1,397 @@
+package de.mpii.mining.rule;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Evaluations of rule bodies kept on disk across runs on the same graph, so that runs which only change the score
+ * thresholds do not match the same bodies again.
+ * <p>
+ * Entries are keyed by {@link Rule#encode()} and hold what matching a body gives independently of the thresholds: the
+ * extension info, the body support, the support and PCA body support of every head, the heads violating an exception,
+ * and the mrr computed so far (only reused with the same embedding). The file is named after a checksum of the graph
+ * and the kinds of extension info collected. It is an append-only log, only the offsets of the last record of each
+ * code are kept in memory, and records are read back on lookup.
+ */
+public class EvaluationCache {
+    public static final Logger LOGGER = Logger.getLogger(EvaluationCache.class.getName());
+
+    private static final int MAGIC = 0x52554c45;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    public static class Entry {
+        // Packed atoms of the rule, a different rule with the same code is a miss.
+        private int[] atoms;
+        public boolean extensible;
+        public RuleExtensionInfo extensionInfo;
+        public long matchTime;
+
+        // Only set for closed rules.
+        public int bodySupport;
+        // False if the heads are not counted, since the body support does not pass the minimum support.
+        public boolean supportsKnown;
+        // Heads with positive support, sorted, and their supports.
+        public int[] supportPids = new int[0];
+        public int[] ruleSupport = new int[0];
+        public int[] pcaBodySupport = new int[0];
+        // Heads which are known facts for an instance of the rule with the exception atom made positive, sorted.
+        public int[] violatingPids = new int[0];
+        private HashMap<Integer, Double> mrr = new HashMap<>();
+
+        public Entry(Rule r) {
+            atoms = PackedRule.pack(r).atoms;
+            extensible = r.extensible;
+            extensionInfo = r.extensionInfo;
+        }
+
+        private Entry() {
+        }
+
+        public int getRuleSupport(int pid) {
+            int i = Arrays.binarySearch(supportPids, pid);
+            return i < 0 ? 0 : ruleSupport[i];
+        }
+
+        public int getPcaBodySupport(int pid) {
+            int i = Arrays.binarySearch(supportPids, pid);
+            return i < 0 ? 0 : pcaBodySupport[i];
+        }
+
+        public boolean isViolating(int pid) {
+            return Arrays.binarySearch(violatingPids, pid) >= 0;
+        }
+
+        // Return null if the mrr of the head is not computed with the current embedding.
+        public Double getMrr(int pid) {
+            return mrr.get(pid);
+        }
+
+        public void putMrr(int pid, double value) {
+            mrr.put(pid, value);
+        }
+
+        // Keep the mrr of an older entry of the same rule.
+        public void addMrr(Entry other) {
+            for (Map.Entry<Integer, Double> e : other.mrr.entrySet()) {
+                if (!mrr.containsKey(e.getKey())) {
+                    mrr.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    private File file;
+    private FileChannel channel;
+    // Null if the file is used by another process, the cache is then read-only.
+    private FileLock lock;
+    private long writePosition;
+    private ConcurrentHashMap<Long, Long> offsets;
+    private long embeddingChecksum;
+
+    private AtomicLong nHits, nMisses;
+
+    // graphChecksum identifies the graph, embeddingChecksum the embedding scoring mrr (0 if not used). Extension info
+    // only includes types and instantiated links if collectTypes and collectLinks are set.
+    public EvaluationCache(File directory, long graphChecksum, long embeddingChecksum, boolean collectTypes, boolean
+            collectLinks) throws IOException {
+        directory.mkdirs();
+        file = new File(directory, String.format("evaluation-%016x-%s%s.cache", graphChecksum, collectTypes ? "t" :
+                "", collectLinks ? "l" : ""));
+        this.embeddingChecksum = embeddingChecksum;
+        offsets = new ConcurrentHashMap<>();
+        nHits = new AtomicLong();
+        nMisses = new AtomicLong();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            LOGGER.warning("Evaluation cache " + file.getPath() + " is used by another process, it is read-only.");
+        }
+        load();
+        LOGGER.info("Loaded " + offsets.size() + " cached rule evaluations from " + file.getPath() + ".");
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            if (lock != null) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.truncate(0);
+                writeFully(header, 0);
+            }
+            writePosition = HEADER_SIZE;
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported evaluation cache: " + file.getPath());
+            }
+            long position = HEADER_SIZE;
+            // A record cut by an interrupted run is dropped.
+            while (position + 4 + 8 <= size) {
+                int length = in.readInt();
+                if (length < 8 || position + 4 + length > size) {
+                    break;
+                }
+                offsets.put(in.readLong(), position);
+                skipFully(in, length - 8);
+                position += 4 + length;
+            }
+            writePosition = position;
+        } finally {
+            in.close();
+        }
+        if (writePosition < size && lock != null) {
+            LOGGER.warning("Dropped an incomplete record at the end of " + file.getPath() + ".");
+            channel.truncate(writePosition);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = (int) in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    // Return null if the rule is not cached.
+    public Entry get(Rule r) {
+        Long offset = offsets.get(r.encode());
+        if (offset == null) {
+            nMisses.incrementAndGet();
+            return null;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(length, offset);
+            ByteBuffer record = ByteBuffer.allocate(length.getInt());
+            readFully(record, offset + 4);
+            Entry entry = readEntry(new DataInputStream(new ByteArrayInputStream(record.array())), PackedRule.pack(r)
+                    .atoms, r.nVariables);
+            if (entry == null) {
+                nMisses.incrementAndGet();
+                return null;
+            }
+            nHits.incrementAndGet();
+            return entry;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void put(Rule r, Entry entry) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeLong(r.encode());
+            writeEntry(out, entry);
+            out.close();
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(0, record.capacity() - 4);
+            synchronized (this) {
+                writeFully(record, writePosition);
+                offsets.put(record.getLong(4), writePosition);
+                writePosition += record.capacity();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void close() {
+        LOGGER.info("Evaluation cache hits: " + nHits.get() + ", misses: " + nMisses.get() + ".");
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Cannot close evaluation cache: " + e.getMessage());
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        writeInts(out, entry.atoms);
+        out.writeBoolean(entry.extensible);
+        out.writeLong(entry.matchTime);
+        RuleExtensionInfo info = entry.extensionInfo;
+        int nVariables = info.binaryDanglingPids.length;
+        for (int i = 0; i < nVariables; ++i) {
+            for (int j = 0; j < nVariables; ++j) {
+                writeSet(out, info.binaryClosingPids[i][j]);
+            }
+            writeSet(out, info.binaryDanglingPids[i]);
+            out.writeInt(info.unaryTypes[i] == null ? -1 : info.unaryTypes[i].size());
+            if (info.unaryTypes[i] != null) {
+                for (Map.Entry<Integer, Integer> e : info.unaryTypes[i].entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+            out.writeInt(info.instantiatedLinks[i] == null ? -1 : info.instantiatedLinks[i].size());
+            if (info.instantiatedLinks[i] != null) {
+                for (Map.Entry<Long, Integer> e : info.instantiatedLinks[i].entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+        }
+        out.writeInt(entry.bodySupport);
+        out.writeBoolean(entry.supportsKnown);
+        writeInts(out, entry.supportPids);
+        writeInts(out, entry.ruleSupport);
+        writeInts(out, entry.pcaBodySupport);
+        writeInts(out, entry.violatingPids);
+        out.writeLong(embeddingChecksum);
+        out.writeInt(entry.mrr.size());
+        for (Map.Entry<Integer, Double> e : entry.mrr.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeDouble(e.getValue());
+        }
+    }
+
+    // Return null if the record is not of a rule with the given packed atoms.
+    private Entry readEntry(DataInputStream in, int[] atoms, int nVariables) throws IOException {
+        in.readLong();
+        Entry entry = new Entry();
+        entry.atoms = readInts(in);
+        if (!Arrays.equals(entry.atoms, atoms)) {
+            return null;
+        }
+        entry.extensible = in.readBoolean();
+        entry.matchTime = in.readLong();
+        RuleExtensionInfo info = new RuleExtensionInfo(nVariables);
+        for (int i = 0; i < nVariables; ++i) {
+            for (int j = 0; j < nVariables; ++j) {
+                info.binaryClosingPids[i][j] = readSet(in);
+            }
+            info.binaryDanglingPids[i] = readSet(in);
+            int n = in.readInt();
+            if (n >= 0) {
+                info.unaryTypes[i] = new HashMap<>();
+                for (; n > 0; --n) {
+                    info.unaryTypes[i].put(in.readInt(), in.readInt());
+                }
+            }
+            n = in.readInt();
+            if (n >= 0) {
+                info.instantiatedLinks[i] = new HashMap<>();
+                for (; n > 0; --n) {
+                    info.instantiatedLinks[i].put(in.readLong(), in.readInt());
+                }
+            }
+        }
+        entry.extensionInfo = info;
+        entry.bodySupport = in.readInt();
+        entry.supportsKnown = in.readBoolean();
+        entry.supportPids = readInts(in);
+        entry.ruleSupport = readInts(in);
+        entry.pcaBodySupport = readInts(in);
+        entry.violatingPids = readInts(in);
+        boolean sameEmbedding = in.readLong() == embeddingChecksum;
+        for (int n = in.readInt(); n > 0; --n) {
+            int pid = in.readInt();
+            double value = in.readDouble();
+            if (sameEmbedding) {
+                entry.mrr.put(pid, value);
+            }
+        }
+        return entry;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeSet(DataOutputStream out, HashSet<Integer> set) throws IOException {
+        out.writeInt(set == null ? -1 : set.size());
+        if (set != null) {
+            for (int v : set) {
+                out.writeInt(v);
+            }
+        }
+    }
+
+    private static HashSet<Integer> readSet(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        HashSet<Integer> set = new HashSet<>();
+        for (; n > 0; --n) {
+            set.add(in.readInt());
+        }
+        return set;
+    }
+
+    // CRC32 of the content of the files, in order. Missing files are skipped.
+    public static long checksum(String... paths) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        for (String path : paths) {
+            File f = new File(path);
+            if (!f.exists()) {
+                continue;
+            }
+            crc.update(f.getName().getBytes("UTF-8"));
+            InputStream in = new FileInputStream(f);
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
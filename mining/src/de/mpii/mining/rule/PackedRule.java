@@ -0,0 +1,228 @@
+package de.mpii.mining.rule;
+
+import de.mpii.mining.atom.Atom;
+import de.mpii.mining.atom.BinaryAtom;
+import de.mpii.mining.atom.InstantiatedAtom;
+import de.mpii.mining.atom.UnaryAtom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact form of a queued rule. Atoms are packed into an int array and the parent scores are only kept for the heads
+ * that are still alive (sourceScr != -1). The rule is inflated to a full {@link Rule} when it is dequeued.
+ */
+public class PackedRule {
+    // Each atom takes ATOM_WIDTH ints: flags, sid, pid, oid (binary) or value (instantiated).
+    private static final int ATOM_WIDTH = 4;
+
+    private static final int BINARY_KIND = 0;
+    private static final int UNARY_KIND = 1;
+    private static final int INSTANTIATED_KIND = 2;
+    private static final int KIND_MASK = 3;
+    private static final int DANGLING_FLAG = 4;
+    private static final int NEGATED_FLAG = 8;
+    private static final int REVERSED_FLAG = 16;
+
+    public int nVariables;
+    public int[] atoms;
+
+    // null if all heads are alive with unset source (the empty rule).
+    public int[] headPids;
+    public double[] headScr;
+    public int[] headRuleSupport;
+    public double[] headScrBound;
+    // Only used when sweeping configurations: Rule.variantSourceScr of the alive heads, one row after another.
+    public double[] headVariantScr;
+    public int sourceBodySupport;
+    public double estimatedCost;
+    // Highest scr bound and highest scr of the source rule over the alive heads, the priorities in best-first search.
+    public double maxScrBound;
+    public double maxSourceScr;
+    // Rule.encode() of the rule, kept when the rule may be spilled to disk.
+    public long code;
+    // Enqueue order, breaks ties in the queue so that a restored queue is dequeued in the same order.
+    public long seq;
+
+    private PackedRule() {
+    }
+
+    public static PackedRule pack(Rule r) {
+        PackedRule p = new PackedRule();
+        p.nVariables = r.nVariables;
+        p.sourceBodySupport = r.sourceBodySupport;
+        p.estimatedCost = r.estimatedCost;
+
+        p.atoms = new int[r.atoms.size() * ATOM_WIDTH];
+        for (int i = 0; i < r.atoms.size(); ++i) {
+            Atom a = r.atoms.get(i);
+            int offset = i * ATOM_WIDTH;
+            int flags = (a.dangling ? DANGLING_FLAG : 0) | (a.negated ? NEGATED_FLAG : 0);
+            if (a instanceof InstantiatedAtom) {
+                InstantiatedAtom atom = (InstantiatedAtom) a;
+                flags |= INSTANTIATED_KIND | (atom.reversed ? REVERSED_FLAG : 0);
+                p.atoms[offset + 3] = atom.value;
+            } else if (a instanceof UnaryAtom) {
+                flags |= UNARY_KIND;
+            } else {
+                flags |= BINARY_KIND;
+                p.atoms[offset + 3] = ((BinaryAtom) a).oid;
+            }
+            p.atoms[offset] = flags;
+            p.atoms[offset + 1] = a.sid;
+            p.atoms[offset + 2] = a.pid;
+        }
+
+        if (r.headPids != null) {
+            int nAlive = r.getNumAliveHeads();
+            p.headPids = new int[nAlive];
+            p.headScr = new double[nAlive];
+            p.headRuleSupport = new int[nAlive];
+            p.headScrBound = new double[nAlive];
+            int nVariants = r.variantSourceScr == null || r.headPids.length == 0 ? 0 : r.variantSourceScr[0].length;
+            p.headVariantScr = r.variantSourceScr == null ? null : new double[nAlive * nVariants];
+            for (int i = 0, j = 0; i < r.headPids.length; ++i) {
+                if (r.sourceScr[i] == -1) {
+                    continue;
+                }
+                p.headPids[j] = r.headPids[i];
+                p.headScr[j] = r.sourceScr[i];
+                p.headRuleSupport[j] = r.sourceRuleSupport[i];
+                p.headScrBound[j] = r.scrUpperBound == null ? 1 : r.scrUpperBound[i];
+                if (p.headVariantScr != null) {
+                    System.arraycopy(r.variantSourceScr[i], 0, p.headVariantScr, j * nVariants, nVariants);
+                }
+                ++j;
+            }
+        }
+        p.setPriorities();
+        return p;
+    }
+
+    private void setPriorities() {
+        maxScrBound = headPids == null ? 1 : 0;
+        maxSourceScr = 0;
+        for (int i = 0; headScr != null && i < headScr.length; ++i) {
+            maxScrBound = Math.max(maxScrBound, headScrBound[i]);
+            maxSourceScr = Math.max(maxSourceScr, headScr[i]);
+        }
+    }
+
+    public int getNumAtoms() {
+        return atoms.length / ATOM_WIDTH;
+    }
+
+    // Approximate heap size in bytes.
+    public long getMemorySize() {
+        long size = 72 + 16 + 4L * atoms.length;
+        if (headPids != null) {
+            size += 64 + 24L * headPids.length;
+        }
+        if (headVariantScr != null) {
+            size += 16 + 8L * headVariantScr.length;
+        }
+        return size;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(code);
+        out.writeLong(seq);
+        out.writeInt(nVariables);
+        out.writeInt(sourceBodySupport);
+        out.writeDouble(estimatedCost);
+        out.writeInt(atoms.length);
+        for (int v : atoms) {
+            out.writeInt(v);
+        }
+        out.writeInt(headPids == null ? -1 : headPids.length);
+        if (headPids != null) {
+            for (int i = 0; i < headPids.length; ++i) {
+                out.writeInt(headPids[i]);
+                out.writeDouble(headScr[i]);
+                out.writeInt(headRuleSupport[i]);
+                out.writeDouble(headScrBound[i]);
+            }
+        }
+        out.writeInt(headVariantScr == null ? -1 : headVariantScr.length);
+        if (headVariantScr != null) {
+            for (double scr : headVariantScr) {
+                out.writeDouble(scr);
+            }
+        }
+    }
+
+    public static PackedRule read(DataInputStream in) throws IOException {
+        PackedRule p = new PackedRule();
+        p.code = in.readLong();
+        p.seq = in.readLong();
+        p.nVariables = in.readInt();
+        p.sourceBodySupport = in.readInt();
+        p.estimatedCost = in.readDouble();
+        p.atoms = new int[in.readInt()];
+        for (int i = 0; i < p.atoms.length; ++i) {
+            p.atoms[i] = in.readInt();
+        }
+        int nHeads = in.readInt();
+        if (nHeads >= 0) {
+            p.headPids = new int[nHeads];
+            p.headScr = new double[nHeads];
+            p.headRuleSupport = new int[nHeads];
+            p.headScrBound = new double[nHeads];
+            for (int i = 0; i < nHeads; ++i) {
+                p.headPids[i] = in.readInt();
+                p.headScr[i] = in.readDouble();
+                p.headRuleSupport[i] = in.readInt();
+                p.headScrBound[i] = in.readDouble();
+            }
+        }
+        int nVariantScr = in.readInt();
+        if (nVariantScr >= 0) {
+            p.headVariantScr = new double[nVariantScr];
+            for (int i = 0; i < nVariantScr; ++i) {
+                p.headVariantScr[i] = in.readDouble();
+            }
+        }
+        p.setPriorities();
+        return p;
+    }
+
+    public Rule unpack(int nRelations) {
+        Rule r = new Rule(nRelations);
+        r.nVariables = nVariables;
+        r.sourceBodySupport = sourceBodySupport;
+        r.estimatedCost = estimatedCost;
+
+        int nAtoms = getNumAtoms();
+        r.atoms = new ArrayList<>(nAtoms + 1);
+        for (int i = 0; i < nAtoms; ++i) {
+            int offset = i * ATOM_WIDTH;
+            int flags = atoms[offset];
+            boolean dangling = (flags & DANGLING_FLAG) != 0, negated = (flags & NEGATED_FLAG) != 0;
+            int kind = flags & KIND_MASK;
+            if (kind == INSTANTIATED_KIND) {
+                r.atoms.add(new InstantiatedAtom(dangling, negated, (flags & REVERSED_FLAG) != 0, atoms[offset + 1],
+                        atoms[offset + 2], atoms[offset + 3]));
+            } else if (kind == UNARY_KIND) {
+                r.atoms.add(new UnaryAtom(dangling, negated, atoms[offset + 1], atoms[offset + 2]));
+            } else {
+                r.atoms.add(new BinaryAtom(dangling, negated, atoms[offset + 1], atoms[offset + 2], atoms[offset + 3]));
+            }
+        }
+
+        r.headPids = headPids;
+        r.sourceScr = headScr;
+        r.sourceRuleSupport = headRuleSupport;
+        r.scrUpperBound = headScrBound;
+        if (headVariantScr != null) {
+            int nVariants = headPids.length == 0 ? 0 : headVariantScr.length / headPids.length;
+            r.variantSourceScr = new double[headPids.length][];
+            for (int i = 0; i < headPids.length; ++i) {
+                r.variantSourceScr[i] = Arrays.copyOfRange(headVariantScr, i * nVariants, (i + 1) * nVariants);
+            }
+        }
+        return r;
+    }
+}
@@ -35,11 +35,26 @@ public class Rule {
         }
     }
 
-    // If sourceScr == -1, it is filtered.
+    // Heads which are still alive, in increasing order of pid. It is null only for the empty rule, whose extensions
+    // start with all heads alive.
+    public int[] headPids;
+    // Parallel to headPids. If sourceScr == -1, it is filtered.
     public double[] sourceScr;
 
     public int[] sourceRuleSupport;
+    // Parallel to headPids, set when the rule is enqueued: upper bound of the scr that the rule and its extensions can
+    // reach for the head. null if unknown, scr is then bounded by 1.
+    public double[] scrUpperBound;
     public int sourceBodySupport;
+    // Only used when sweeping configurations, parallel to headPids: the source scr of the head in each variant, -1 if
+    // the head is filtered in the variant.
+    public double[][] variantSourceScr;
+
+    // Time in nanoseconds spent matching this rule, and matching the rule it is extended from.
+    public long matchTime;
+    public long sourceMatchTime;
+    // Estimated time in nanoseconds to match this rule, used for scheduling.
+    public double estimatedCost;
 
     public boolean extensible;
 
@@ -56,6 +71,7 @@ public class Rule {
     public int nRelations;
 
     public Rule(int nRelations) {
+        headPids = null;
         sourceScr = null;
         sourceRuleSupport = null;
         this.nRelations = nRelations;
@@ -262,32 +278,86 @@ public class Rule {
         return true;
     }
 
+    // Restrict the rule to the given heads (sorted by pid), all of them alive with unset source.
+    public void setHeads(int[] pids) {
+        headPids = pids;
+        sourceScr = new double[pids.length];
+        sourceRuleSupport = new int[pids.length];
+        Arrays.fill(sourceRuleSupport, Integer.MAX_VALUE); // Some very big number
+    }
+
+    public int getNumAliveHeads() {
+        if (headPids == null) {
+            return nRelations;
+        }
+        int num = 0;
+        for (double scr : sourceScr) {
+            if (scr != -1) {
+                ++num;
+            }
+        }
+        return num;
+    }
+
+    // Mark the head as filtered for this rule.
+    public void killHead(int pid) {
+        int i = Arrays.binarySearch(headPids, pid);
+        if (i >= 0) {
+            sourceScr[i] = -1;
+        }
+    }
+
     public Rule cloneRule() {
         Rule r = new Rule(nRelations);
-        r.sourceScr = new double[nRelations];
-        r.sourceRuleSupport = new int[nRelations];
-        Arrays.fill(r.sourceRuleSupport, Integer.MAX_VALUE); // Some very big number
+        // Only alive heads are carried to the new rule.
         if (stats != null) {
-            for (int i = 0; i < nRelations; ++i) {
-                r.sourceScr[i] = stats.scr[i];
-                r.sourceRuleSupport[i] = stats.ruleSupport[i];
+            int nAlive = 0;
+            for (double scr : stats.scr) {
+                if (scr != -1) {
+                    ++nAlive;
+                }
             }
-            r.sourceBodySupport = stats.bodySupport;
-        } else {
-            if (sourceScr != null) {
-                for (int i = 0; i < nRelations; ++i) {
-                    r.sourceScr[i] = sourceScr[i];
+            r.headPids = new int[nAlive];
+            r.sourceScr = new double[nAlive];
+            r.sourceRuleSupport = new int[nAlive];
+            r.variantSourceScr = stats.variantScr == null ? null : new double[nAlive][];
+            for (int i = 0, j = 0; i < stats.pids.length; ++i) {
+                if (stats.scr[i] != -1) {
+                    r.headPids[j] = stats.pids[i];
+                    r.sourceScr[j] = stats.scr[i];
+                    r.sourceRuleSupport[j] = stats.ruleSupport[i];
+                    if (r.variantSourceScr != null) {
+                        r.variantSourceScr[j] = stats.variantScr[i].clone();
+                    }
+                    ++j;
                 }
             }
-            if (sourceRuleSupport != null) {
-                // TODO
-                // This piece of code should not be executed because exception is only added after the rule is actually
-                // matched.
-                for (int i = 0; i < nRelations; ++i) {
-                    r.sourceRuleSupport[i] = sourceRuleSupport[i];
+            r.sourceBodySupport = stats.bodySupport;
+        } else if (headPids != null) {
+            int nAlive = getNumAliveHeads();
+            r.headPids = new int[nAlive];
+            r.sourceScr = new double[nAlive];
+            r.sourceRuleSupport = new int[nAlive];
+            r.variantSourceScr = variantSourceScr == null ? null : new double[nAlive][];
+            for (int i = 0, j = 0; i < headPids.length; ++i) {
+                if (sourceScr[i] != -1) {
+                    r.headPids[j] = headPids[i];
+                    r.sourceScr[j] = sourceScr[i];
+                    r.sourceRuleSupport[j] = sourceRuleSupport[i];
+                    if (r.variantSourceScr != null) {
+                        r.variantSourceScr[j] = variantSourceScr[i].clone();
+                    }
+                    ++j;
                 }
             }
+        } else {
+            int[] pids = new int[nRelations];
+            for (int i = 0; i < nRelations; ++i) {
+                pids[i] = i;
+            }
+            r.setHeads(pids);
         }
+        r.sourceMatchTime = matchTime;
         r.nVariables = nVariables;
         r.nRelations = nRelations;
         r.atoms = new ArrayList<>();
@@ -379,7 +449,7 @@ public class Rule {
         }
         r.atoms.add(new BinaryAtom(false, negated, sid, pid, oid));
         if (sid == 0 && oid == 1) {
-            r.sourceScr[pid] = -1; // Not compute rules having this head.
+            r.killHead(pid); // Not compute rules having this head.
         }
         return r;
     }
@@ -79,6 +79,79 @@ public class RulePruner {
         return false;
     }
 
+    // Upper bound of the support of the rule and all of its extensions for the given head, using co-occurrence
+    // statistics of the positive binary atoms which connect the two head variables directly or by a 2-hop path.
+    public static int getSupportUpperBound(Rule r, int head, KnowledgeGraph graph) {
+        int bound = graph.pidSOInstances[head].size();
+        for (int i = 1; i < r.atoms.size(); ++i) {
+            if (r.atoms.get(i).negated || !(r.atoms.get(i) instanceof BinaryAtom)) {
+                continue;
+            }
+            BinaryAtom a = (BinaryAtom) r.atoms.get(i);
+            if (a.sid == 0 && a.oid == 1) {
+                bound = Math.min(bound, graph.getCoOccurrenceCount(head, a.pid));
+                continue;
+            }
+            if (a.sid == 1 && a.oid == 0) {
+                bound = Math.min(bound, graph.getReversedCoOccurrenceCount(head, a.pid));
+                continue;
+            }
+            // Path V0 -pid1- v -pid2- V1.
+            int v, pid1;
+            if (a.sid == 0) {
+                v = a.oid;
+                pid1 = a.pid;
+            } else if (a.oid == 0) {
+                v = a.sid;
+                pid1 = -a.pid - 1;
+            } else {
+                continue;
+            }
+            for (int j = 1; j < r.atoms.size(); ++j) {
+                if (r.atoms.get(j).negated || !(r.atoms.get(j) instanceof BinaryAtom)) {
+                    continue;
+                }
+                BinaryAtom b = (BinaryAtom) r.atoms.get(j);
+                if (b.sid == v && b.oid == 1) {
+                    bound = Math.min(bound, graph.getPathCount(head, pid1, b.pid));
+                } else if (b.sid == 1 && b.oid == v) {
+                    bound = Math.min(bound, graph.getPathCount(head, pid1, -b.pid - 1));
+                }
+            }
+        }
+        return bound;
+    }
+
+    // Upper bound of the scr of a head whose support is at most supportBound. A head is killed when bodySupport ==
+    // ruleSupport, so the standard confidence of an output rule is at most supportBound / (supportBound + 1). The PCA
+    // body support of a head may still equal its support, thus PCA confidence is only bounded by 1.
+    public static double getScrUpperBound(int supportBound, MinerConfig config) {
+        double conf = config.usePCAConf ? 1 : (double) supportBound / (supportBound + 1);
+        return conf * (1 - config.embeddingWeight) + config.embeddingWeight;
+    }
+
+    // Kill the heads for which the rule and its extensions cannot reach minSupport or minHeadCoverage, and set the scr
+    // bound of the others.
+    public static void pruneHeadsBySupportBound(Rule r, KnowledgeGraph graph, MinerConfig config) {
+        if (r.headPids == null) {
+            return;
+        }
+        r.scrUpperBound = new double[r.headPids.length];
+        for (int i = 0; i < r.headPids.length; ++i) {
+            if (r.sourceScr[i] == -1) {
+                continue;
+            }
+            int head = r.headPids[i];
+            int bound = getSupportUpperBound(r, head, graph);
+            if (bound < config.minSupport || (double) bound / graph.pidSOInstances[head].size() < config
+                    .minHeadCoverage) {
+                r.sourceScr[i] = -1;
+            } else {
+                r.scrUpperBound[i] = getScrUpperBound(bound, config);
+            }
+        }
+    }
+
     public static boolean isContentPruned(Rule r, MinerConfig config) {
         boolean result = isContentPrunedInternal(r, config);
         return result;
@@ -90,7 +163,7 @@ public class RulePruner {
         }
         if (r.stats == null) return false;
         boolean hasGoodHead = false;
-        for (int i = 0; i < r.nRelations; ++i) {
+        for (int i = 0; i < r.stats.pids.length; ++i) {
             // TODO: DEPRECATED: minHeadCoverage minExceptionConfidence filter migrated to RuleStats.
             if (r.stats.headCoverage[i] >= config.minHeadCoverage &&
                     (r.stats.scr[i] > r.sourceScr[i] + 1e-3) && r.sourceScr[i] != -1
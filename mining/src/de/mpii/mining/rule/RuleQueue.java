@@ -1,8 +1,13 @@
 package de.mpii.mining.rule;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,6 +15,12 @@ import java.util.logging.Logger;
  * Created by hovinhthinh on 11/13/17.
  */
 
+interface QueueRefiller<T> {
+    // Add elements to the empty queue. allIdle is true if all collaborators are waiting, thus no more elements can be
+    // pushed. Return false if nothing is added.
+    boolean refill(PriorityQueue<T> queue, boolean allIdle);
+}
+
 class CollaborationPriorityQueue<T> {
 
     private PriorityQueue<T> queue;
@@ -18,6 +29,9 @@ class CollaborationPriorityQueue<T> {
     private final Object lock = new Object();
     private int currentWaitCount = 0;
     public boolean isEnded = false;
+    private boolean pauseRequested = false;
+    private int currentPauseCount = 0;
+    private QueueRefiller<T> refiller = null;
 
     public CollaborationPriorityQueue(int nCollaborators, Comparator<T> comparator) {
         if (nCollaborators < 1) {
@@ -27,6 +41,10 @@ class CollaborationPriorityQueue<T> {
         queue = new PriorityQueue<>(comparator);
     }
 
+    public void setRefiller(QueueRefiller<T> refiller) {
+        this.refiller = refiller;
+    }
+
     public boolean push(T element) {
         synchronized (lock) {
             boolean result = queue.add(element);
@@ -35,19 +53,92 @@ class CollaborationPriorityQueue<T> {
         }
     }
 
+    // Wait until every collaborator is either paused in pop() or waiting for elements, thus holds no popped element.
+    // Return false if the queue is ended, otherwise resume() must be called after.
+    public boolean pause() {
+        synchronized (lock) {
+            pauseRequested = true;
+            lock.notifyAll();
+            try {
+                while (!isEnded && currentPauseCount + currentWaitCount < numberOfCollaborators) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (isEnded || Thread.currentThread().isInterrupted()) {
+                pauseRequested = false;
+                lock.notifyAll();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public void resume() {
+        synchronized (lock) {
+            pauseRequested = false;
+            lock.notifyAll();
+        }
+    }
+
+    // Elements in the queue, in no particular order.
+    public List<T> getElements() {
+        synchronized (lock) {
+            return new ArrayList<>(queue);
+        }
+    }
+
+    // Drop all elements, following pops return null. Return false if the queue is already ended.
+    public boolean close() {
+        synchronized (lock) {
+            if (isEnded) {
+                return false;
+            }
+            isEnded = true;
+            queue.clear();
+            lock.notifyAll();
+            return true;
+        }
+    }
+
     public T pop() {
         synchronized (lock) {
             try {
                 while (true) {
+                    if (isEnded) {
+                        lock.notify();
+                        return null;
+                    }
+                    if (pauseRequested) {
+                        ++currentPauseCount;
+                        lock.notifyAll();
+                        while (pauseRequested && !isEnded) {
+                            lock.wait();
+                        }
+                        --currentPauseCount;
+                        continue;
+                    }
+                    if (queue.isEmpty() && refiller != null) {
+                        refiller.refill(queue, false);
+                    }
                     if (!queue.isEmpty()) {
                         return queue.poll();
                     }
                     ++currentWaitCount;
                     if (currentWaitCount == numberOfCollaborators) {
+                        if (refiller != null && refiller.refill(queue, true)) {
+                            --currentWaitCount;
+                            lock.notifyAll();
+                            continue;
+                        }
                         isEnded = true;
                         lock.notify();
                         return null;
                     }
+                    if (pauseRequested) {
+                        lock.notifyAll();
+                    }
                     lock.wait();
                     --currentWaitCount;
                 }
@@ -63,37 +154,127 @@ class CollaborationPriorityQueue<T> {
     }
 }
 
-class RuleComparator implements Comparator<Rule> {
+// Rules with fewer atoms first. Among rules with the same number of atoms, the most expensive ones are matched first,
+// so that the cheap ones fill the end of the level instead of leaving a single worker on a long rule.
+class RuleComparator implements Comparator<PackedRule> {
+    @Override
+    public int compare(PackedRule o1, PackedRule o2) {
+        if (o1.getNumAtoms() != o2.getNumAtoms()) {
+            return o1.getNumAtoms() - o2.getNumAtoms();
+        }
+        if (o1.estimatedCost != o2.estimatedCost) {
+            return Double.compare(o2.estimatedCost, o1.estimatedCost);
+        }
+        return Long.compare(o1.seq, o2.seq);
+    }
+}
+
+// Rules with the highest scr bound over their alive heads first, whatever their number of atoms, so that the rules which
+// can still enter the top-k of a head are matched before the others. Ties are broken by the highest scr of the source
+// rule among rules of the same number of atoms, then as in RuleComparator.
+class BestFirstRuleComparator extends RuleComparator {
     @Override
-    public int compare(Rule o1, Rule o2) {
-        return o1.atoms.size() - o2.atoms.size();
+    public int compare(PackedRule o1, PackedRule o2) {
+        if (o1.maxScrBound != o2.maxScrBound) {
+            return Double.compare(o2.maxScrBound, o1.maxScrBound);
+        }
+        if (o1.getNumAtoms() == o2.getNumAtoms() && o1.maxSourceScr != o2.maxSourceScr) {
+            return Double.compare(o2.maxSourceScr, o1.maxSourceScr);
+        }
+        return super.compare(o1, o2);
     }
 }
 
 public class RuleQueue {
     public static final Logger LOGGER = Logger.getLogger(RuleQueue.class.getName());
 
+    // Queued rules and dedup codes, taken while the queue is paused and written afterwards.
+    public static class State {
+        long nextSeq;
+        int enqueueCount;
+        List<PackedRule> queuedRules;
+        long[] enqueuedRuleCode;
+        SpillingFrontier.State frontier;
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeLong(nextSeq);
+            out.writeInt(enqueueCount);
+            out.writeInt(queuedRules.size());
+            for (PackedRule p : queuedRules) {
+                p.write(out);
+            }
+            out.writeInt(enqueuedRuleCode.length);
+            for (long code : enqueuedRuleCode) {
+                out.writeLong(code);
+            }
+            out.writeBoolean(frontier != null);
+            if (frontier != null) {
+                frontier.write(out);
+            }
+        }
+
+        public static State read(DataInputStream in) throws IOException {
+            State state = new State();
+            state.nextSeq = in.readLong();
+            state.enqueueCount = in.readInt();
+            int n = in.readInt();
+            state.queuedRules = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                state.queuedRules.add(PackedRule.read(in));
+            }
+            state.enqueuedRuleCode = new long[in.readInt()];
+            for (int i = 0; i < state.enqueuedRuleCode.length; ++i) {
+                state.enqueuedRuleCode[i] = in.readLong();
+            }
+            if (in.readBoolean()) {
+                state.frontier = SpillingFrontier.State.read(in);
+            }
+            return state;
+        }
+    }
+
     private static final int OPERATION_LOG_INTERVAL = 100000;
 
     // Synchronized set.
     private Set<Long> enqueuedRuleCode;
 
-    // Synchronized queue.
-    private CollaborationPriorityQueue<Rule> rulesQueue;
+    // Synchronized queue, rules are kept packed until they are dequeued.
+    private CollaborationPriorityQueue<PackedRule> rulesQueue;
+    // If not null, the queue only holds rules of the level being matched, extended rules wait in the frontier until
+    // the level is finished.
+    private SpillingFrontier frontier;
 
     private int enqueueLimit;
+    private AtomicLong nextSeq;
     private int enqueueCount;
     private int operationCount;
     private int currentNumAtom;
+    private int nRelations;
 
-    public RuleQueue(int enqueueLimit, int nWorkers) {
+    // If memoryBudget (in bytes) is positive, rules beyond it are spilled to spillDirectory (null for the system
+    // temporary directory). If bestFirst is true, rules with higher scr bound are dequeued first, only within the level
+    // being matched if memoryBudget is positive.
+    public RuleQueue(int enqueueLimit, int nWorkers, int nRelations, long memoryBudget, File spillDirectory, boolean
+            bestFirst) {
         enqueuedRuleCode = Collections.synchronizedSet(new HashSet<>());
-        rulesQueue = new CollaborationPriorityQueue<>(nWorkers, new RuleComparator());
+        rulesQueue = new CollaborationPriorityQueue<>(nWorkers, bestFirst ? new BestFirstRuleComparator() : new
+                RuleComparator());
+        if (memoryBudget > 0) {
+            frontier = new SpillingFrontier(memoryBudget, spillDirectory);
+            rulesQueue.setRefiller(new QueueRefiller<PackedRule>() {
+                @Override
+                public boolean refill(PriorityQueue<PackedRule> queue, boolean allIdle) {
+                    return frontier.fill(queue, allIdle);
+                }
+            });
+        }
 
         this.enqueueLimit = enqueueLimit;
+        nextSeq = new AtomicLong();
         enqueueCount = 0;
         operationCount = 0;
         currentNumAtom = 2;
+        this.nRelations = nRelations;
     }
 
     public int size() {
@@ -109,11 +290,28 @@ public class RuleQueue {
             return false;
         }
         long code = r.encode();
+        if (frontier != null) {
+            PackedRule p = PackedRule.pack(r);
+            p.code = code;
+            p.seq = nextSeq.getAndIncrement();
+            if (!frontier.add(p) || r.getNumAliveHeads() == 0) {
+                return false;
+            }
+            ++enqueueCount;
+            return true;
+        }
         if (enqueuedRuleCode.contains(code)) {
             return false;
         }
         enqueuedRuleCode.add(code);
-        rulesQueue.push(r);
+        if (r.getNumAliveHeads() == 0) {
+            // The rule and its extensions cannot produce any output, the code is still recorded so that duplicated
+            // rules are dropped as well.
+            return false;
+        }
+        PackedRule p = PackedRule.pack(r);
+        p.seq = nextSeq.getAndIncrement();
+        rulesQueue.push(p);
         ++enqueueCount;
         ++operationCount;
         if (operationCount % OPERATION_LOG_INTERVAL == 0) {
@@ -122,12 +320,65 @@ public class RuleQueue {
         return true;
     }
 
+    // Stop the search, the queued rules are dropped. Return false if the search is already ended.
+    public boolean close() {
+        return rulesQueue.close();
+    }
+
+    // Wait until no dequeued rule is being processed and block further dequeues, to take a consistent state. Return
+    // false if the search is ended, otherwise resume() must be called after.
+    public boolean pause() {
+        return rulesQueue.pause();
+    }
+
+    public void resume() {
+        rulesQueue.resume();
+    }
+
+    // Must be called while paused. Spilled segments are linked into linkDirectory.
+    public State getState(File linkDirectory) throws IOException {
+        State state = new State();
+        state.nextSeq = nextSeq.get();
+        state.enqueueCount = enqueueCount;
+        state.queuedRules = rulesQueue.getElements();
+        synchronized (enqueuedRuleCode) {
+            state.enqueuedRuleCode = new long[enqueuedRuleCode.size()];
+            int i = 0;
+            for (long code : enqueuedRuleCode) {
+                state.enqueuedRuleCode[i++] = code;
+            }
+        }
+        if (frontier != null) {
+            state.frontier = frontier.getState(linkDirectory);
+        }
+        return state;
+    }
+
+    // Must be called before any rule is enqueued. Spilled segments are linked from linkDirectory.
+    public void setState(State state, File linkDirectory) throws IOException {
+        if ((state.frontier == null) != (frontier == null)) {
+            throw new RuntimeException("Frontier memory budget must be used both or neither in the checkpointed and " +
+                    "the resumed run.");
+        }
+        nextSeq.set(state.nextSeq);
+        enqueueCount = state.enqueueCount;
+        for (PackedRule p : state.queuedRules) {
+            rulesQueue.push(p);
+        }
+        for (long code : state.enqueuedRuleCode) {
+            enqueuedRuleCode.add(code);
+        }
+        if (frontier != null) {
+            frontier.setState(state.frontier, linkDirectory);
+        }
+    }
+
     public Rule dequeue() {
         ++operationCount;
         if (operationCount % OPERATION_LOG_INTERVAL == 0) {
             LOGGER.info("RuleBodyQueueSize: " + rulesQueue.size());
         }
-        Rule front = rulesQueue.pop();
-        return front;
+        PackedRule front = rulesQueue.pop();
+        return front == null ? null : front.unpack(nRelations);
     }
 }
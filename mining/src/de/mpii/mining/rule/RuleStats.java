@@ -1,7 +1,6 @@
 package de.mpii.mining.rule;
 
 import de.mpii.embedding.EmbeddingClient;
-import de.mpii.mining.Miner;
 import de.mpii.mining.MinerConfig;
 import de.mpii.mining.graph.KnowledgeGraph;
 import de.mpii.util.Infer;
@@ -15,121 +14,283 @@ import java.util.*;
 
 public class RuleStats {
     public static final int MRR_SAMPLE_SIZE = 100;
+    // Alive heads of the rule, all other arrays are parallel to this one.
+    public int[] pids;
     public int ruleSupport[], bodySupport;
     public double[] headCoverage, confidence, mrr, scr, ec;
     public HashSet<SOInstance> headInstances;
+    // Only used when sweeping configurations: the scr of each head in each variant.
+    public double[][] variantScr;
 
     private double[] sourceScr; // -1 is pruned, 0 is non-closed.
 
-    public RuleStats(double[] sourceScr) {
-        this.sourceScr = sourceScr;
-        ruleSupport = new int[sourceScr.length];
+    public RuleStats(Rule r) {
+        this.pids = r.headPids;
+        this.sourceScr = r.sourceScr;
+        ruleSupport = new int[pids.length];
         bodySupport = 0;
-        headCoverage = new double[sourceScr.length];
-        confidence = new double[sourceScr.length];
-        ec = new double[sourceScr.length];
+        headCoverage = new double[pids.length];
+        confidence = new double[pids.length];
+        ec = new double[pids.length];
         Arrays.fill(ec, -1);
-        mrr = new double[sourceScr.length];
+        mrr = new double[pids.length];
         Arrays.fill(mrr, -1);
-        scr = new double[sourceScr.length];
+        scr = new double[pids.length];
         headInstances = new HashSet<>();
     }
 
-    public boolean goodExceptionCoverage(Rule r, int pid, MinerConfig config) {
+    // 'i' is the index of the head in pids.
+    public boolean goodExceptionCoverage(Rule r, int i, MinerConfig config) {
         if (r.getState() < 3) {
             // Last added atom is not exception then return true.
             return true;
         }
-        if (ec[pid] == -1) {
-            ec[pid] = ((double) r.sourceBodySupport - bodySupport) / (r.sourceBodySupport - r.sourceRuleSupport[pid]);
+        if (ec[i] == -1) {
+            ec[i] = ((double) r.sourceBodySupport - bodySupport) / (r.sourceBodySupport - r.sourceRuleSupport[i]);
         }
-        return ec[pid] >= config.minExceptionConfidence;
+        return ec[i] >= config.minExceptionConfidence;
+    }
+
+    // Take a random sample of at most MRR_SAMPLE_SIZE head instances which are not known facts of the given head.
+    private static ArrayList<SOInstance> sampleUnknownFacts(List<SOInstance> shuffledInstances, int pid,
+                                                            KnowledgeGraph graph) {
+        ArrayList<SOInstance> result = new ArrayList<>();
+        for (SOInstance h : shuffledInstances) {
+            if (!graph.trueFacts.containFact(h.subject, pid, h.object)) {
+                result.add(h);
+                if (result.size() >= MRR_SAMPLE_SIZE) {
+                    break;
+                }
+            }
+        }
+        return result;
     }
 
     public void simplify(Rule r, KnowledgeGraph graph, EmbeddingClient embeddingClient, MinerConfig config) {
         bodySupport = headInstances.size();
-        HashSet<SOInstance> exceptionHeadInstances = null;
-        for (int pid = 0; pid < confidence.length; ++pid) {
-            if (sourceScr[pid] == -1 || bodySupport <= config.minSupport) {
-                scr[pid] = -1;
-            } else {
-                if (r.atoms.get(r.atoms.size() - 1).negated) { // CHECK SUITABLE EXCEPTION.
-                    if (exceptionHeadInstances == null) {
-                        r.atoms.get(r.atoms.size() - 1).negated = false;
-                        exceptionHeadInstances = Infer.matchRule(r, true);
-                        r.atoms.get(r.atoms.size() - 1).negated = true;
-                    }
-                    boolean flag = true;
-                    for (SOInstance so : exceptionHeadInstances) {
-                        if (graph.trueFacts.containFact(so.subject, pid, so.object)) {
-                            flag = false;
-                            break;
-                        }
-                    }
-                    if (!flag) {
-                        scr[pid] = -1;
-                        continue;
+        Arrays.fill(scr, -1);
+        if (bodySupport <= config.minSupport) {
+            headInstances = null;
+            return;
+        }
+        boolean[] alive = new boolean[pids.length];
+        boolean hasAlive = false;
+        for (int i = 0; i < pids.length; ++i) {
+            alive[i] = sourceScr[i] != -1;
+            hasAlive |= alive[i];
+        }
+        if (!hasAlive) {
+            headInstances = null;
+            return;
+        }
+        if (r.atoms.get(r.atoms.size() - 1).negated) { // CHECK SUITABLE EXCEPTION.
+            // A head is not suitable if any instance of the rule with the exception atom made positive is a known fact.
+            r.atoms.get(r.atoms.size() - 1).negated = false;
+            HashSet<SOInstance> exceptionHeadInstances = Infer.matchRule(graph, r, true);
+            r.atoms.get(r.atoms.size() - 1).negated = true;
+            for (SOInstance so : exceptionHeadInstances) {
+                List<Integer> soPids = graph.getPidList(so.subject, so.object);
+                if (soPids == null) {
+                    continue;
+                }
+                for (int pid : soPids) {
+                    int i = Arrays.binarySearch(pids, pid);
+                    if (i >= 0) {
+                        alive[i] = false;
                     }
                 }
+            }
+        }
 
-                HashSet<Integer> goodS = null;
-                ArrayList<SOInstance> unknownFacts = new ArrayList<>();
-                for (SOInstance h : headInstances) {
-                    if (graph.trueFacts.containFact(h.subject, pid, h.object)) {
-                        ++ruleSupport[pid];
-                        if (config.usePCAConf) {
-                            if (goodS == null) {
-                                goodS = new HashSet<>();
-                            }
-                            goodS.add(h.subject);
-                        }
-                    } else {
-                        if (config.embeddingWeight > 0) {
-                            unknownFacts.add(h);
-                        }
-                    }
+        // Count support of all alive heads in one pass over the head instances.
+        HashMap<Integer, Integer> subjectBodySupport = config.usePCAConf ? new HashMap<>() : null;
+        // Subjects of the head instances supporting each alive head, by index of the head.
+        HashMap<Integer, HashSet<Integer>> goodS = config.usePCAConf ? new HashMap<>() : null;
+        for (SOInstance h : headInstances) {
+            if (config.usePCAConf) {
+                subjectBodySupport.put(h.subject, subjectBodySupport.getOrDefault(h.subject, 0) + 1);
+            }
+            List<Integer> hPids = graph.getPidList(h.subject, h.object);
+            if (hPids == null) {
+                continue;
+            }
+            for (int pid : hPids) {
+                int i = Arrays.binarySearch(pids, pid);
+                if (i < 0 || !alive[i]) {
+                    continue;
                 }
-                unknownFacts = Miner.samplingSOHeadInstances(unknownFacts);
+                ++ruleSupport[i];
                 if (config.usePCAConf) {
-                    int pcaBodySupport = 0;
-                    for (SOInstance h : headInstances) {
-                        if (goodS != null && goodS.contains(h.subject)) {
-                            ++pcaBodySupport;
-                        }
+                    if (!goodS.containsKey(i)) {
+                        goodS.put(i, new HashSet<>());
                     }
-                    confidence[pid] = pcaBodySupport == 0 ? 0 : (double) ruleSupport[pid] / pcaBodySupport;
-                } else {
-                    confidence[pid] = bodySupport == 0 ? 0 : (double) ruleSupport[pid] / bodySupport;
+                    goodS.get(i).add(h.subject);
+                }
+            }
+        }
+
+        int[] pcaBodySupport = new int[pids.length];
+        for (int i = 0; i < pids.length; ++i) {
+            if (config.usePCAConf && goodS.containsKey(i)) {
+                for (int s : goodS.get(i)) {
+                    pcaBodySupport[i] += subjectBodySupport.get(s);
                 }
-                headCoverage[pid] = graph.pidSOInstances[pid].size() == 0 ? 0 : (double) ruleSupport[pid] / graph.pidSOInstances[pid].size();
-
-                scr[pid] = 0;
-                if (headCoverage[pid] >= config.minHeadCoverage) {
-                    // Call embedding service.
-                    if (bodySupport == ruleSupport[pid] || confidence[pid] < config.minConf || ruleSupport[pid] <
-                            config.minSupport || !goodExceptionCoverage(r, pid, config)) {
-                        // Applying the rule doesn't extend the kg.
-                        // Rule is not confident (double check to reduce complexity when calling embedding model)
-                        // Rule does not have enough support.
-                        scr[pid] = -1;
-                    } else {
-                        scr[pid] = confidence[pid] * (1 - config.embeddingWeight);
-                        if (config.embeddingWeight > 0) {
-                            // Use MRR.
-                            mrr[pid] = 0;
-                            for (SOInstance h : unknownFacts) {
-                                mrr[pid] += embeddingClient.getInvertedRank(h.subject, pid, h.object);
+            }
+        }
+        score(r, graph, embeddingClient, config, alive, pcaBodySupport, null);
+        headInstances = null;
+    }
+
+    // Score the alive heads from their supports. The mrr of a head is taken from the cache entry if not null and it
+    // holds the head, otherwise it is computed from the head instances and added to the entry. Return false if it
+    // cannot be computed since the head instances are not available.
+    private boolean score(Rule r, KnowledgeGraph graph, EmbeddingClient embeddingClient, MinerConfig config, boolean[]
+            alive, int[] pcaBodySupport, EvaluationCache.Entry entry) {
+        ArrayList<SOInstance> shuffledInstances = null;
+        for (int i = 0; i < pids.length; ++i) {
+            if (!alive[i]) {
+                continue;
+            }
+            int pid = pids[i];
+            if (config.usePCAConf) {
+                confidence[i] = pcaBodySupport[i] == 0 ? 0 : (double) ruleSupport[i] / pcaBodySupport[i];
+            } else {
+                confidence[i] = bodySupport == 0 ? 0 : (double) ruleSupport[i] / bodySupport;
+            }
+            headCoverage[i] = graph.pidSOInstances[pid].size() == 0 ? 0 : (double) ruleSupport[i] / graph
+                    .pidSOInstances[pid].size();
+
+            if (headCoverage[i] >= config.minHeadCoverage) {
+                // Call embedding service.
+                if (bodySupport == ruleSupport[i] || confidence[i] < config.minConf || ruleSupport[i] <
+                        config.minSupport || !goodExceptionCoverage(r, i, config)) {
+                    // Applying the rule doesn't extend the kg.
+                    // Rule is not confident (double check to reduce complexity when calling embedding model)
+                    // Rule does not have enough support.
+                    scr[i] = -1;
+                } else {
+                    scr[i] = confidence[i] * (1 - config.embeddingWeight);
+                    if (config.embeddingWeight > 0) {
+                        // Use MRR.
+                        Double cachedMrr = entry == null ? null : entry.getMrr(pid);
+                        if (cachedMrr != null) {
+                            mrr[i] = cachedMrr;
+                        } else {
+                            if (headInstances == null) {
+                                return false;
+                            }
+                            if (shuffledInstances == null) {
+                                shuffledInstances = new ArrayList<>(headInstances);
+                                Collections.shuffle(shuffledInstances);
+                            }
+                            ArrayList<SOInstance> unknownFacts = sampleUnknownFacts(shuffledInstances, pid, graph);
+                            int[] subjects = new int[unknownFacts.size()], objects = new int[unknownFacts.size()];
+                            for (int j = 0; j < subjects.length; ++j) {
+                                subjects[j] = unknownFacts.get(j).subject;
+                                objects[j] = unknownFacts.get(j).object;
+                            }
+                            mrr[i] = 0;
+                            for (double irank : embeddingClient.getInvertedRanks(pid, subjects, objects)) {
+                                mrr[i] += irank;
+                            }
+                            mrr[i] /= unknownFacts.size();
+                            if (entry != null) {
+                                entry.putMrr(pid, mrr[i]);
                             }
-                            mrr[pid] /= unknownFacts.size();
-                            scr[pid] += mrr[pid] * config.embeddingWeight;
                         }
+                        scr[i] += mrr[i] * config.embeddingWeight;
                     }
-                } else {
-                    scr[pid] = -1;
                 }
+            } else {
+                scr[i] = -1;
+            }
+        }
+        return true;
+    }
+
+    // Count what the cache entry keeps for the matched rule: the supports of every head, whether alive or not, and the
+    // heads violating the exception. Must be called before simplify.
+    public void fillCacheEntry(Rule r, KnowledgeGraph graph, MinerConfig config, EvaluationCache.Entry entry) {
+        entry.bodySupport = headInstances.size();
+        entry.supportsKnown = entry.bodySupport > config.minSupport;
+        if (!entry.supportsKnown) {
+            return;
+        }
+        if (r.atoms.get(r.atoms.size() - 1).negated) {
+            r.atoms.get(r.atoms.size() - 1).negated = false;
+            HashSet<SOInstance> exceptionHeadInstances = Infer.matchRule(graph, r, true);
+            r.atoms.get(r.atoms.size() - 1).negated = true;
+            TreeSet<Integer> violatingPids = new TreeSet<>();
+            for (SOInstance so : exceptionHeadInstances) {
+                List<Integer> soPids = graph.getPidList(so.subject, so.object);
+                if (soPids != null) {
+                    violatingPids.addAll(soPids);
+                }
+            }
+            entry.violatingPids = toArray(violatingPids);
+        }
+        HashMap<Integer, Integer> subjectBodySupport = new HashMap<>();
+        TreeMap<Integer, Integer> ruleSupport = new TreeMap<>();
+        HashMap<Integer, HashSet<Integer>> goodS = new HashMap<>();
+        for (SOInstance h : headInstances) {
+            subjectBodySupport.put(h.subject, subjectBodySupport.getOrDefault(h.subject, 0) + 1);
+            List<Integer> hPids = graph.getPidList(h.subject, h.object);
+            if (hPids == null) {
+                continue;
+            }
+            for (int pid : hPids) {
+                ruleSupport.put(pid, ruleSupport.getOrDefault(pid, 0) + 1);
+                if (!goodS.containsKey(pid)) {
+                    goodS.put(pid, new HashSet<>());
+                }
+                goodS.get(pid).add(h.subject);
+            }
+        }
+        entry.supportPids = toArray(ruleSupport.keySet());
+        entry.ruleSupport = new int[entry.supportPids.length];
+        entry.pcaBodySupport = new int[entry.supportPids.length];
+        for (int i = 0; i < entry.supportPids.length; ++i) {
+            int pid = entry.supportPids[i];
+            entry.ruleSupport[i] = ruleSupport.get(pid);
+            for (int s : goodS.get(pid)) {
+                entry.pcaBodySupport[i] += subjectBodySupport.get(s);
             }
         }
+    }
+
+    private static int[] toArray(Set<Integer> set) {
+        int[] result = new int[set.size()];
+        int i = 0;
+        for (int v : set) {
+            result[i++] = v;
+        }
+        return result;
+    }
 
+    // Same as simplify, with the supports taken from the cache entry. The head instances are only used for the mrr
+    // missing from the entry. Return false if the entry is not enough, then the rule must be matched.
+    public boolean simplify(Rule r, KnowledgeGraph graph, EmbeddingClient embeddingClient, MinerConfig config,
+                            EvaluationCache.Entry entry) {
+        bodySupport = entry.bodySupport;
+        Arrays.fill(scr, -1);
+        if (bodySupport <= config.minSupport) {
+            headInstances = null;
+            return true;
+        }
+        if (!entry.supportsKnown) {
+            return false;
+        }
+        boolean[] alive = new boolean[pids.length];
+        int[] pcaBodySupport = new int[pids.length];
+        for (int i = 0; i < pids.length; ++i) {
+            alive[i] = sourceScr[i] != -1 && !entry.isViolating(pids[i]);
+            if (alive[i]) {
+                ruleSupport[i] = entry.getRuleSupport(pids[i]);
+                pcaBodySupport[i] = entry.getPcaBodySupport(pids[i]);
+            }
+        }
+        boolean result = score(r, graph, embeddingClient, config, alive, pcaBodySupport, entry);
         headInstances = null;
+        return result;
     }
 }
@@ -0,0 +1,365 @@
+package de.mpii.mining.rule;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rules of the next level (rules with one more atom than the ones being matched), kept within a memory budget.
+ * <p>
+ * Rules are buffered in memory together with their codes. When the buffer passes half of the budget, it is sorted by
+ * code and written to a compressed segment on disk, and its codes are forgotten. When the next level is started, the
+ * segments and the remaining buffer are merged by code, keeping the first enqueued copy of each rule, and handed to the
+ * queue in chunks of at most half of the budget.
+ * <p>
+ * Rules without alive heads are buffered too, so that they still hide later duplicates with alive heads, as in the
+ * in-memory queue. They are dropped when read back.
+ */
+class SpillingFrontier {
+    public static final Logger LOGGER = Logger.getLogger(SpillingFrontier.class.getName());
+
+    private static final Comparator<PackedRule> CODE_ORDER = new Comparator<PackedRule>() {
+        @Override
+        public int compare(PackedRule o1, PackedRule o2) {
+            return Long.compare(o1.code, o2.code);
+        }
+    };
+
+    private static final Comparator<SegmentReader> READER_ORDER = new Comparator<SegmentReader>() {
+        @Override
+        public int compare(SegmentReader o1, SegmentReader o2) {
+            int c = Long.compare(o1.current.code, o2.current.code);
+            // Earlier segments hold earlier enqueued rules.
+            return c != 0 ? c : o1.index - o2.index;
+        }
+    };
+
+    private static class SegmentReader {
+        int index;
+        // Either a segment file or the in-memory buffer.
+        File file;
+        DataInputStream in;
+        int remaining;
+        List<PackedRule> memory;
+        // Number of rules read before current.
+        int position = -1;
+        PackedRule current;
+
+        // Read the next rule into current, return false and release the segment at the end.
+        boolean advance() throws IOException {
+            ++position;
+            if (memory != null) {
+                current = position < memory.size() ? memory.get(position) : null;
+            } else if (remaining > 0) {
+                current = PackedRule.read(in);
+                --remaining;
+            } else {
+                current = null;
+                in.close();
+                file.delete();
+            }
+            return current != null;
+        }
+
+        void open(File file) throws IOException {
+            this.file = file;
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            remaining = in.readInt();
+        }
+    }
+
+    // Checkpointed state. Segments are referred to by name in the checkpoint directory.
+    static class State {
+        int nSegmentsWritten;
+        List<PackedRule> buffer;
+        List<String> segments;
+        // Readers of the level being merged, null if no level is being merged.
+        List<String> mergeFiles;
+        List<Integer> mergePositions;
+        // Rules of the buffer merged into the level, which are not read yet.
+        List<PackedRule> mergeMemory;
+        long lastCode;
+        boolean hasLastCode;
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(nSegmentsWritten);
+            out.writeInt(buffer.size());
+            for (PackedRule p : buffer) {
+                p.write(out);
+            }
+            out.writeInt(segments.size());
+            for (String segment : segments) {
+                out.writeUTF(segment);
+            }
+            out.writeBoolean(mergeFiles != null);
+            if (mergeFiles != null) {
+                out.writeInt(mergeFiles.size());
+                for (int i = 0; i < mergeFiles.size(); ++i) {
+                    out.writeUTF(mergeFiles.get(i));
+                    out.writeInt(mergePositions.get(i));
+                }
+                out.writeInt(mergeMemory.size());
+                for (PackedRule p : mergeMemory) {
+                    p.write(out);
+                }
+                out.writeLong(lastCode);
+                out.writeBoolean(hasLastCode);
+            }
+        }
+
+        static State read(DataInputStream in) throws IOException {
+            State state = new State();
+            state.nSegmentsWritten = in.readInt();
+            int n = in.readInt();
+            state.buffer = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                state.buffer.add(PackedRule.read(in));
+            }
+            n = in.readInt();
+            state.segments = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                state.segments.add(in.readUTF());
+            }
+            if (in.readBoolean()) {
+                n = in.readInt();
+                state.mergeFiles = new ArrayList<>(n);
+                state.mergePositions = new ArrayList<>(n);
+                for (int i = 0; i < n; ++i) {
+                    state.mergeFiles.add(in.readUTF());
+                    state.mergePositions.add(in.readInt());
+                }
+                n = in.readInt();
+                state.mergeMemory = new ArrayList<>(n);
+                for (int i = 0; i < n; ++i) {
+                    state.mergeMemory.add(PackedRule.read(in));
+                }
+                state.lastCode = in.readLong();
+                state.hasLastCode = in.readBoolean();
+            }
+            return state;
+        }
+    }
+
+    private long chunkSize;
+    private File parentDirectory, directory;
+    private int nSegmentsWritten;
+
+    // Next level.
+    private HashSet<Long> codes;
+    private ArrayList<PackedRule> buffer;
+    private long bufferSize;
+    private ArrayList<File> segments;
+
+    // Current level, being merged from segments.
+    private PriorityQueue<SegmentReader> merge;
+    private long lastCode;
+    private boolean hasLastCode;
+
+    public SpillingFrontier(long memoryBudget, File parentDirectory) {
+        chunkSize = memoryBudget / 2;
+        this.parentDirectory = parentDirectory;
+        directory = null;
+        nSegmentsWritten = 0;
+        codes = new HashSet<>();
+        buffer = new ArrayList<>();
+        bufferSize = 0;
+        segments = new ArrayList<>();
+        merge = null;
+    }
+
+    // Return false if a rule with the same code is already in the buffer.
+    public synchronized boolean add(PackedRule p) {
+        if (!codes.add(p.code)) {
+            return false;
+        }
+        buffer.add(p);
+        // Each buffered code also costs about 64 bytes in the hash set.
+        bufferSize += p.getMemorySize() + 64;
+        if (bufferSize > chunkSize) {
+            spill();
+        }
+        return true;
+    }
+
+    private void spill() {
+        try {
+            File file = new File(getDirectory(), "segment-" + (nSegmentsWritten++) + ".gz");
+            file.deleteOnExit();
+            Collections.sort(buffer, CODE_ORDER);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new
+                    FileOutputStream(file))));
+            out.writeInt(buffer.size());
+            for (PackedRule p : buffer) {
+                p.write(out);
+            }
+            out.close();
+            LOGGER.info("Spilled " + buffer.size() + " rules to " + file.getPath());
+            segments.add(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        codes.clear();
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    // Fill the empty queue with the next chunk of the current level. If the current level is exhausted and startLevel is
+    // true, the buffered rules become the current level. Return false if nothing is added.
+    public synchronized boolean fill(PriorityQueue<PackedRule> queue, boolean startLevel) {
+        try {
+            while (true) {
+                if (merge != null) {
+                    long size = 0;
+                    while (!merge.isEmpty() && size < chunkSize) {
+                        SegmentReader reader = merge.poll();
+                        PackedRule p = reader.current;
+                        if (reader.advance()) {
+                            merge.add(reader);
+                        }
+                        if (hasLastCode && p.code == lastCode) {
+                            continue;
+                        }
+                        lastCode = p.code;
+                        hasLastCode = true;
+                        if (p.headPids == null || p.headPids.length > 0) {
+                            queue.add(p);
+                            size += p.getMemorySize();
+                        }
+                    }
+                    if (merge.isEmpty()) {
+                        merge = null;
+                    }
+                    if (!queue.isEmpty()) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (!startLevel || buffer.isEmpty()) {
+                    return false;
+                }
+                startLevel();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void startLevel() throws IOException {
+        Collections.sort(buffer, CODE_ORDER);
+        merge = new PriorityQueue<>(READER_ORDER);
+        for (int i = 0; i <= segments.size(); ++i) {
+            SegmentReader reader = new SegmentReader();
+            reader.index = i;
+            if (i < segments.size()) {
+                reader.open(segments.get(i));
+            } else {
+                reader.memory = new ArrayList<>(buffer);
+            }
+            if (reader.advance()) {
+                merge.add(reader);
+            }
+        }
+        if (!segments.isEmpty()) {
+            LOGGER.info("Merging " + segments.size() + " spilled segments.");
+        }
+        hasLastCode = false;
+        segments.clear();
+        codes.clear();
+        buffer.clear();
+        bufferSize = 0;
+    }
+
+    private File getDirectory() throws IOException {
+        if (directory == null) {
+            directory = parentDirectory == null ? Files.createTempDirectory("rule-frontier").toFile() : Files
+                    .createTempDirectory(parentDirectory.toPath(), "rule-frontier").toFile();
+            directory.deleteOnExit();
+        }
+        return directory;
+    }
+
+    // Hard link, or copy if linking is not supported, the file into the directory under the same name.
+    private static File link(File file, File directory) throws IOException {
+        File target = new File(directory, file.getName());
+        try {
+            Files.createLink(target.toPath(), file.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file.toPath(), target.toPath());
+        }
+        return target;
+    }
+
+    // Segments are linked into linkDirectory, since they are deleted once merged.
+    public synchronized State getState(File linkDirectory) throws IOException {
+        State state = new State();
+        state.nSegmentsWritten = nSegmentsWritten;
+        state.buffer = new ArrayList<>(buffer);
+        state.segments = new ArrayList<>();
+        for (File segment : segments) {
+            state.segments.add(link(segment, linkDirectory).getName());
+        }
+        if (merge != null) {
+            state.mergeFiles = new ArrayList<>();
+            state.mergePositions = new ArrayList<>();
+            state.mergeMemory = new ArrayList<>();
+            // Readers are kept in segment order, which decides the copy kept among duplicated rules.
+            List<SegmentReader> readers = new ArrayList<>(merge);
+            Collections.sort(readers, new Comparator<SegmentReader>() {
+                @Override
+                public int compare(SegmentReader o1, SegmentReader o2) {
+                    return o1.index - o2.index;
+                }
+            });
+            for (SegmentReader reader : readers) {
+                if (reader.memory != null) {
+                    state.mergeMemory = new ArrayList<>(reader.memory.subList(reader.position, reader.memory.size()));
+                } else {
+                    state.mergeFiles.add(link(reader.file, linkDirectory).getName());
+                    state.mergePositions.add(reader.position);
+                }
+            }
+            state.lastCode = lastCode;
+            state.hasLastCode = hasLastCode;
+        }
+        return state;
+    }
+
+    public synchronized void setState(State state, File linkDirectory) throws IOException {
+        nSegmentsWritten = state.nSegmentsWritten;
+        for (PackedRule p : state.buffer) {
+            codes.add(p.code);
+            buffer.add(p);
+            bufferSize += p.getMemorySize() + 64;
+        }
+        for (String segment : state.segments) {
+            segments.add(link(new File(linkDirectory, segment), getDirectory()));
+        }
+        if (state.mergeFiles != null) {
+            merge = new PriorityQueue<>(READER_ORDER);
+            for (int i = 0; i < state.mergeFiles.size(); ++i) {
+                SegmentReader reader = new SegmentReader();
+                reader.index = i;
+                reader.open(link(new File(linkDirectory, state.mergeFiles.get(i)), getDirectory()));
+                for (int j = 0; j < state.mergePositions.get(i); ++j) {
+                    PackedRule.read(reader.in);
+                    --reader.remaining;
+                }
+                reader.position = state.mergePositions.get(i) - 1;
+                if (reader.advance()) {
+                    merge.add(reader);
+                }
+            }
+            SegmentReader reader = new SegmentReader();
+            reader.index = Integer.MAX_VALUE;
+            reader.memory = state.mergeMemory;
+            if (reader.advance()) {
+                merge.add(reader);
+            }
+            lastCode = state.lastCode;
+            hasLastCode = state.hasLastCode;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package de.mpii.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Files replaced atomically: the content is written to a temporary file next to the file, which is then moved over it,
+ * so that concurrent readers see either the old or the new content, never a partial one.
+ */
+public final class AtomicFile {
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    public static void write(File file, Writer writer) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                writer.write(out);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption
+                    .REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -18,8 +18,6 @@ import java.util.logging.Logger;
 public class Infer {
     public static final Logger LOGGER = Logger.getLogger(Infer.class.getName());
 
-    public static KnowledgeGraph knowledgeGraph;
-
     public static Rule parseRule(KnowledgeGraph graph, String ruleString) {
         Rule r = new Rule(0);
         HashMap<String, Integer> varsMap = new HashMap();
@@ -51,7 +49,7 @@ public class Infer {
                         }
                         int sid = varsMap.get(subject),
                                 pid = graph.relationsStringMap.get(predicate),
-                                value = knowledgeGraph.entitiesStringMap.get(object.substring(1, object.length() - 1));
+                                value = graph.entitiesStringMap.get(object.substring(1, object.length() - 1));
                         r.atoms.add(new InstantiatedAtom(false, negated, false, sid, pid, value));
                     } else {
                         if (!varsMap.containsKey(object)) {
@@ -59,7 +57,7 @@ public class Infer {
                         }
                         int sid = varsMap.get(object),
                                 pid = graph.relationsStringMap.get(predicate),
-                                value = knowledgeGraph.entitiesStringMap.get(subject.substring(1, subject.length() - 1));
+                                value = graph.entitiesStringMap.get(subject.substring(1, subject.length() - 1));
                         r.atoms.add(new InstantiatedAtom(false, negated, true, sid, pid, value));
                     }
                 } else {
@@ -111,8 +109,8 @@ public class Infer {
         return false;
     }
 
-    private static void recur(Rule rule, int position, int variableValues[], HashSet<SOInstance> headInstances,
-                              boolean preventDuplicateVar) {
+    private static void recur(KnowledgeGraph knowledgeGraph, Rule rule, int position, int variableValues[],
+                              HashSet<SOInstance> headInstances, boolean preventDuplicateVar) {
         if (position == rule.atoms.size()) {
             headInstances.add(new SOInstance(variableValues[0], variableValues[1]));
             return;
@@ -131,7 +129,7 @@ public class Infer {
                 if (hasEdge == a.negated) {
                     return;
                 }
-                recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
             }
         } else if (a instanceof UnaryAtom) {
             if (variableValues[a.sid] == -1) {
@@ -141,7 +139,7 @@ public class Infer {
                         continue;
                     }
                     variableValues[a.sid] = t;
-                    recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                    recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
                     variableValues[a.sid] = -1;
                 }
             } else {
@@ -149,7 +147,7 @@ public class Infer {
                 if (hasType == a.negated) {
                     return;
                 }
-                recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
             }
         } else {
             BinaryAtom atom = (BinaryAtom) a;
@@ -162,7 +160,7 @@ public class Infer {
                     }
                     variableValues[atom.sid] = so.subject;
                     variableValues[atom.oid] = so.object;
-                    recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                    recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
                     variableValues[atom.sid] = variableValues[atom.oid] = -1;
                 }
             } else if (variableValues[atom.sid] == -1 || variableValues[atom.oid] == -1) {
@@ -175,7 +173,7 @@ public class Infer {
                             continue;
                         }
                         variableValues[atom.oid] = e.oid;
-                        recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                        recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
                         variableValues[atom.oid] = -1;
                     }
                 } else {
@@ -187,7 +185,7 @@ public class Infer {
                             continue;
                         }
                         variableValues[atom.sid] = e.oid;
-                        recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                        recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
                         variableValues[atom.sid] = -1;
                     }
                 }
@@ -197,16 +195,16 @@ public class Infer {
                 if (hasFact == atom.negated) {
                     return;
                 }
-                recur(rule, position + 1, variableValues, headInstances, preventDuplicateVar);
+                recur(knowledgeGraph, rule, position + 1, variableValues, headInstances, preventDuplicateVar);
             }
         }
     }
 
-    public static HashSet<SOInstance> matchRule(Rule r, boolean preventDuplicateVar) {
+    public static HashSet<SOInstance> matchRule(KnowledgeGraph graph, Rule r, boolean preventDuplicateVar) {
         HashSet<SOInstance> headInstances = new HashSet<>();
         int[] variableValues = new int[r.nVariables];
         Arrays.fill(variableValues, -1);
-        recur(r, 1, variableValues, headInstances, preventDuplicateVar);
+        recur(graph, r, 1, variableValues, headInstances, preventDuplicateVar);
 
         return headInstances;
     }
@@ -233,7 +231,7 @@ public class Infer {
         }
 
         int top = Integer.parseInt(args[2]);
-        knowledgeGraph = new KnowledgeGraph(args[0]);
+        KnowledgeGraph knowledgeGraph = new KnowledgeGraph(args[0]);
 
         BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[1])));
         PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[3]))));
@@ -259,7 +257,7 @@ public class Infer {
             }
             ++ruleCount;
             LOGGER.info("Inferring rule: " + rule);
-            HashSet<SOInstance> instances = matchRule(r, false);
+            HashSet<SOInstance> instances = matchRule(knowledgeGraph, r, false);
             System.out.println("body_support: " + instances.size());
             int pid = r.atoms.get(0).pid;
             int localNumTrue = 0;